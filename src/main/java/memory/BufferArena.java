@@ -0,0 +1,110 @@
+package memory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recycles the flat double arrays of contiguous matrices (see SharedMatrix(BufferArena)).
+ * Arrays are handed out in size classes of four steps per power of two (64, 80, 96, 112, 128, 160, ...), so an
+ * array is at most a quarter longer than requested, and an array released by one matrix can be reused by any later
+ * matrix of the same size class. The released arrays kept for reuse take at most maxRetainedBytes together,
+ * the others are left to the garbage collector.
+ * An acquired array holds whatever its previous user left in it, and may be longer than requested.
+ */
+public final class BufferArena {
+
+    static final int MIN_LENGTH = 64; // arrays of less than 64 doubles are not worth recycling
+    private static final int CLASSES = 31 << 2;
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final long maxRetainedBytes;
+    private final List<ArrayDeque<double[]>> classes = new ArrayList<>(Collections.nCopies(CLASSES, null));
+    private long retainedBytes = 0;
+    private long allocated = 0;
+    private long reused = 0;
+
+    /**
+     * An arena that keeps up to an eighth of the maximum heap size in released arrays.
+     */
+    public BufferArena() {
+        this(Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public BufferArena(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @return an array of at least length doubles, with arbitrary content
+     */
+    public synchronized double[] acquire(int length) {
+        if (length < MIN_LENGTH) {
+            allocated++;
+            return new double[length];
+        }
+        int sizeClass = sizeClass(length);
+        long classLength = classLength(sizeClass);
+        if (classLength > MAX_ARRAY_LENGTH) {
+            allocated++;
+            return new double[length];
+        }
+        ArrayDeque<double[]> free = classes.get(sizeClass);
+        if (free != null && !free.isEmpty()) {
+            reused++;
+            double[] array = free.pop();
+            retainedBytes -= (long) array.length * Double.BYTES;
+            return array;
+        }
+        allocated++;
+        return new double[(int) classLength];
+    }
+
+    /**
+     * Returns array to the arena. The caller must not use it afterwards.
+     */
+    public synchronized void release(double[] array) {
+        if (array.length < MIN_LENGTH || classLength(sizeClass(array.length)) != array.length) {
+            return; // not one of ours
+        }
+        long bytes = (long) array.length * Double.BYTES;
+        if (retainedBytes + bytes > maxRetainedBytes) {
+            return;
+        }
+        int sizeClass = sizeClass(array.length);
+        if (classes.get(sizeClass) == null) {
+            classes.set(sizeClass, new ArrayDeque<>());
+        }
+        classes.get(sizeClass).push(array);
+        retainedBytes += bytes;
+    }
+
+    // the smallest class whose arrays hold length doubles, length must be at least MIN_LENGTH.
+    // Class c holds (4 + c % 4) * 2^(c / 4 - 2) doubles
+    static int sizeClass(int length) {
+        int n = length - 1;
+        int octave = 31 - Integer.numberOfLeadingZeros(n); // 2^octave <= n < 2^(octave + 1)
+        int step = n >> (octave - 2); // 4 to 7, (step + 1) * 2^(octave - 2) is the first class above n
+        return (octave << 2) + step - 3;
+    }
+
+    static long classLength(int sizeClass) {
+        return (long) (4 + (sizeClass & 3)) << ((sizeClass >> 2) - 2);
+    }
+
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return the bytes taken by the released arrays the arena keeps
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+}
@@ -0,0 +1,59 @@
+package memory;
+
+/**
+ * Computes a signed sum of equally sized matrices (a fused chain of additions, negations and transposes)
+ * straight into a flat row-major output, one row range at a time, without intermediate results.
+ */
+public class ElementwiseKernel {
+
+    private ElementwiseKernel() {}
+
+    /**
+     * Writes the sum of the terms (term k negated if negated[k]) into the region
+     * [rowStart, rowEnd) x [colStart, colEnd) of out, a row-major array with cols columns.
+     * Every term must be loaded with row vectors. The region is overwritten, so it can be recomputed safely.
+     * Takes no locks - the caller must make sure the terms aren't written meanwhile.
+     */
+    public static void combine(SharedMatrix[] terms, boolean[] negated, double[] out, int cols,
+                               int rowStart, int rowEnd, int colStart, int colEnd) {
+        int len = colEnd - colStart;
+        double[] scratch = null; // the slice of an off-heap row
+        for (int i = rowStart; i < rowEnd; i++) {
+            int outOffset = i * cols + colStart;
+            for (int k = 0; k < terms.length; k++) {
+                SharedVector row = terms[k].get(i);
+                if (k == 0) {
+                    row.copyTo(colStart, out, outOffset, len);
+                    if (negated[k]) {
+                        VectorKernels.negate(out, outOffset, len);
+                    }
+                    continue;
+                }
+                double[] source = row.array();
+                int sourceOffset = row.offset() + colStart;
+                if (row.isOffHeap()) {
+                    if (scratch == null) {
+                        scratch = new double[len];
+                    }
+                    row.copyTo(colStart, scratch, 0, len);
+                    source = scratch;
+                    sourceOffset = 0;
+                }
+                if (negated[k]) {
+                    VectorKernels.sub(out, outOffset, source, sourceOffset, len);
+                } else {
+                    VectorKernels.add(out, outOffset, source, sourceOffset, len);
+                }
+            }
+        }
+    }
+
+    /**
+     * Negates the region [rowStart, rowEnd) x [colStart, colEnd) of out, a row-major array with cols columns.
+     */
+    public static void negate(double[] out, int cols, int rowStart, int rowEnd, int colStart, int colEnd) {
+        for (int i = rowStart; i < rowEnd; i++) {
+            VectorKernels.negate(out, i * cols + colStart, colEnd - colStart);
+        }
+    }
+}
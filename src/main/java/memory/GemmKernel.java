@@ -0,0 +1,153 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * Cache-blocked matrix multiplication over SharedMatrix operands.
+ * The left operand is expected row-major and the right operand column-major (as loadColumnMajor stores it),
+ * so every partial dot product runs over two contiguous ranges of memory.
+ * The output is split into ROW_BLOCK x COL_BLOCK tiles that can be computed independently,
+ * and inside a tile the shared dimension is walked in DEPTH_BLOCK slices so the rows and columns of the
+ * current slice stay in cache while the whole tile is computed.
+ * Off-heap operands are copied slice by slice into heap arrays (packed) before they are multiplied.
+ * The pack arrays and the slice tables are kept per thread and reused by the next tiles the thread computes.
+ */
+public class GemmKernel {
+
+    public static final int ROW_BLOCK = 64;
+    public static final int COL_BLOCK = 64;
+    public static final int DEPTH_BLOCK = 256;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private GemmKernel() {}
+
+    // the buffers of the tiles computed by one thread, grown to the largest tile it has seen
+    private static final class Scratch {
+        private double[][] rowArrays = new double[0][];
+        private int[] rowOffsets = new int[0];
+        private double[][] colArrays = new double[0][];
+        private int[] colOffsets = new int[0];
+        private double[] leftPack = new double[0];
+        private double[] rightPack = new double[0];
+
+        private void fit(int tileRows, int tileCols, int sliceLength, boolean packLeft, boolean packRight) {
+            if (rowArrays.length < tileRows) {
+                rowArrays = new double[tileRows][];
+                rowOffsets = new int[tileRows];
+            }
+            if (colArrays.length < tileCols) {
+                colArrays = new double[tileCols][];
+                colOffsets = new int[tileCols];
+            }
+            if (packLeft && leftPack.length < tileRows * sliceLength) {
+                leftPack = new double[tileRows * sliceLength];
+            }
+            if (packRight && rightPack.length < tileCols * sliceLength) {
+                rightPack = new double[tileCols * sliceLength];
+            }
+        }
+    }
+
+    /**
+     * Computes the tile [rowStart, rowEnd) x [colStart, colEnd) of left x right into out.
+     * out is a row-major array with right.length() columns. The tile is overwritten, so a tile can be
+     * recomputed safely. Takes no locks - the caller must make sure the operands aren't written meanwhile.
+     */
+    public static void multiplyTile(SharedMatrix left, SharedMatrix right, double[] out,
+                                    int rowStart, int rowEnd, int colStart, int colEnd) {
+        multiplyTile(left, right, out, rowStart, rowEnd, colStart, colEnd, false);
+    }
+
+    /**
+     * Same as multiplyTile, but if accumulate is true the product is added to the values already in the tile
+     * (out += left x right) instead of overwriting them.
+     */
+    public static void multiplyTile(SharedMatrix left, SharedMatrix right, double[] out,
+                                    int rowStart, int rowEnd, int colStart, int colEnd, boolean accumulate) {
+        int outCols = right.length();
+        multiplyTile(left, right, out, rowStart * outCols + colStart, outCols, rowStart, rowEnd, colStart, colEnd, accumulate);
+    }
+
+    /**
+     * Same as multiplyTile, but the tile is written anywhere in out: element (rowStart, colStart) goes to
+     * out[outBase] and every row of the tile starts outStride elements after the previous one.
+     * E.g. outBase 0 and outStride colEnd - colStart fill a buffer that holds only the tile.
+     */
+    public static void multiplyTile(SharedMatrix left, SharedMatrix right, double[] out, int outBase, int outStride,
+                                    int rowStart, int rowEnd, int colStart, int colEnd, boolean accumulate) {
+        int depth = right.get(0).length();
+
+        if (!accumulate) {
+            for (int i = 0; i < rowEnd - rowStart; i++) {
+                int rowBase = outBase + i * outStride;
+                for (int j = 0; j < colEnd - colStart; j++) {
+                    out[rowBase + j] = 0;
+                }
+            }
+        }
+
+        // the depth slices of the rows and columns of the tile as (array, offset) pairs. On-heap vectors are
+        // used in place, off-heap vectors are packed into a heap array first since the kernels run on arrays
+        int tileRows = rowEnd - rowStart;
+        int tileCols = colEnd - colStart;
+        int sliceLength = Math.min(depth, DEPTH_BLOCK);
+        Scratch scratch = SCRATCH.get();
+        scratch.fit(tileRows, tileCols, sliceLength, left.isOffHeap(), right.isOffHeap());
+        double[][] rowArrays = scratch.rowArrays;
+        int[] rowOffsets = scratch.rowOffsets;
+        double[][] colArrays = scratch.colArrays;
+        int[] colOffsets = scratch.colOffsets;
+        double[] leftPack = left.isOffHeap() ? scratch.leftPack : null;
+        double[] rightPack = right.isOffHeap() ? scratch.rightPack : null;
+
+        for (int p0 = 0; p0 < depth; p0 += DEPTH_BLOCK) {
+            int p1 = Math.min(p0 + DEPTH_BLOCK, depth);
+            int len = p1 - p0;
+            slices(left, rowStart, rowEnd, p0, len, rowArrays, rowOffsets, leftPack);
+            slices(right, colStart, colEnd, p0, len, colArrays, colOffsets, rightPack);
+            int i = 0;
+            // 2x2 register block: every loaded element is used twice
+            for (; i + 1 < tileRows; i += 2) {
+                int out0 = outBase + i * outStride;
+                int out1 = out0 + outStride;
+                int j = 0;
+                for (; j + 1 < tileCols; j += 2) {
+                    VectorKernels.block2x2(rowArrays[i], rowOffsets[i], rowArrays[i + 1], rowOffsets[i + 1],
+                            colArrays[j], colOffsets[j], colArrays[j + 1], colOffsets[j + 1],
+                            len, out, out0 + j, out1 + j);
+                }
+                if (j < tileCols) {
+                    out[out0 + j] += VectorKernels.dot(rowArrays[i], rowOffsets[i], colArrays[j], colOffsets[j], len);
+                    out[out1 + j] += VectorKernels.dot(rowArrays[i + 1], rowOffsets[i + 1], colArrays[j], colOffsets[j], len);
+                }
+            }
+            if (i < tileRows) {
+                int out0 = outBase + i * outStride;
+                for (int j = 0; j < tileCols; j++) {
+                    out[out0 + j] += VectorKernels.dot(rowArrays[i], rowOffsets[i], colArrays[j], colOffsets[j], len);
+                }
+            }
+        }
+        // the tables point into the operands, they must not keep them alive once the tile is done
+        Arrays.fill(rowArrays, 0, tileRows, null);
+        Arrays.fill(colArrays, 0, tileCols, null);
+    }
+
+    // fills arrays and offsets with where the elements [p0, p0 + len) of the vectors [start, end) of matrix are
+    private static void slices(SharedMatrix matrix, int start, int end, int p0, int len,
+                               double[][] arrays, int[] offsets, double[] pack) {
+        for (int v = start; v < end; v++) {
+            SharedVector vector = matrix.get(v);
+            int k = v - start;
+            if (pack != null) {
+                vector.copyTo(p0, pack, k * len, len);
+                arrays[k] = pack;
+                offsets[k] = k * len;
+            } else {
+                arrays[k] = vector.array();
+                offsets[k] = vector.offset() + p0;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package memory;
+
+/**
+ * The element-wise and dot product loops the vectors and the multiply kernel run on.
+ * Every range is given as (array, offset) pairs so views into flat storage can be used directly.
+ */
+interface Kernels {
+
+    // a[aOff..aOff+len) += b[bOff..bOff+len)
+    void add(double[] a, int aOff, double[] b, int bOff, int len);
+
+    // a[aOff..aOff+len) -= b[bOff..bOff+len)
+    void sub(double[] a, int aOff, double[] b, int bOff, int len);
+
+    // a[off..off+len) = -a[off..off+len)
+    void negate(double[] a, int off, int len);
+
+    double dot(double[] a, int aOff, double[] b, int bOff, int len);
+
+    // adds the four dot products of the rows a0, a1 with the columns b0, b1 (len elements each)
+    // to out[out0], out[out0 + 1], out[out1], out[out1 + 1]
+    void block2x2(double[] a0, int oa0, double[] a1, int oa1, double[] b0, int ob0, double[] b1, int ob1,
+                  int len, double[] out, int out0, int out1);
+}
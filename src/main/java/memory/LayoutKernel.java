@@ -0,0 +1,106 @@
+package memory;
+
+/**
+ * Converts matrices between double[][] rows, row vectors and column vectors.
+ * The copies are split by destination vectors, so a conversion can be computed as several independent ranges.
+ * A copy that turns rows into columns (or the other way around) is done in BLOCK x BLOCK tiles, so the
+ * source vectors being read and the destination vectors being written stay in cache for the whole tile.
+ * Takes no locks - the caller must make sure the source isn't written meanwhile.
+ */
+public class LayoutKernel {
+
+    public static final int BLOCK = 64;
+
+    private LayoutKernel() {}
+
+    /**
+     * Fills the vectors [from, to) of flat, a matrix stored as vectors of length doubles (vector v starts at
+     * v * length), from matrix: vector v is row v of matrix, or column v if columns is true.
+     */
+    public static void store(double[][] matrix, boolean columns, double[] flat, int length, int from, int to) {
+        if (!columns) {
+            for (int v = from; v < to; v++) {
+                System.arraycopy(matrix[v], 0, flat, v * length, length);
+            }
+            return;
+        }
+        for (int k0 = 0; k0 < length; k0 += BLOCK) {
+            int k1 = Math.min(k0 + BLOCK, length);
+            for (int v0 = from; v0 < to; v0 += BLOCK) {
+                int v1 = Math.min(v0 + BLOCK, to);
+                for (int v = v0; v < v1; v++) {
+                    int base = v * length;
+                    for (int k = k0; k < k1; k++) {
+                        flat[base + k] = matrix[k][v];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Like store(double[][], ...), from the matrix held by source: the vectors of flat are its rows if
+     * orientation is ROW_MAJOR and its columns otherwise, whatever the orientation of source.
+     */
+    public static void store(SharedMatrix source, VectorOrientation orientation, double[] flat, int length, int from, int to) {
+        if (source.getOrientation() == orientation) {
+            for (int v = from; v < to; v++) {
+                source.get(v).copyTo(0, flat, v * length, length);
+            }
+            return;
+        }
+        gather(source, length, from, to, flat, null);
+    }
+
+    /**
+     * Fills the rows [from, to) of result with the matrix held by source, or with its transpose if transposed is true.
+     */
+    public static void read(SharedMatrix source, boolean transposed, double[][] result, int from, int to) {
+        int length = result.length == 0 ? 0 : result[0].length;
+        if ((source.getOrientation() == VectorOrientation.ROW_MAJOR) != transposed) {
+            for (int v = from; v < to; v++) {
+                source.get(v).copyTo(0, result[v], 0, length);
+            }
+            return;
+        }
+        gather(source, length, from, to, null, result);
+    }
+
+    // destination vector v (for v in [from, to)) gets element v of each of the source vectors 0 .. length - 1.
+    // It starts at flat[v * length], or at rows[v][0] if rows isn't null. Only the source vectors of the current
+    // tile are looked up, an off-heap vector's slice of the tile is copied into pack first since the copies run
+    // on arrays, so a call allocates O(BLOCK x BLOCK) at most whatever the size of the matrix
+    private static void gather(SharedMatrix source, int length, int from, int to, double[] flat, double[][] rows) {
+        double[][] arrays = new double[BLOCK][];
+        int[] offsets = new int[BLOCK]; // element v of source vector k is arrays[k - k0][offsets[k - k0] + v]
+        double[] pack = null;
+        for (int k0 = 0; k0 < length; k0 += BLOCK) {
+            int k1 = Math.min(k0 + BLOCK, length);
+            for (int v0 = from; v0 < to; v0 += BLOCK) {
+                int v1 = Math.min(v0 + BLOCK, to);
+                for (int k = k0; k < k1; k++) {
+                    SharedVector vector = source.get(k);
+                    int slot = k - k0;
+                    if (vector.isOffHeap()) {
+                        if (pack == null) {
+                            pack = new double[BLOCK * BLOCK];
+                        }
+                        vector.copyTo(v0, pack, slot * BLOCK, v1 - v0);
+                        arrays[slot] = pack;
+                        offsets[slot] = slot * BLOCK - v0;
+                    } else {
+                        arrays[slot] = vector.array();
+                        offsets[slot] = vector.offset();
+                    }
+                }
+                for (int v = v0; v < v1; v++) {
+                    double[] out = rows == null ? flat : rows[v];
+                    int base = rows == null ? v * length : 0;
+                    for (int k = k0; k < k1; k++) {
+                        out[base + k] = arrays[k - k0][offsets[k - k0] + v];
+                    }
+                }
+            }
+        }
+    }
+}
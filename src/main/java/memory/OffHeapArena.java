@@ -0,0 +1,82 @@
+package memory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates OffHeapStorage and releases all of it at once when closed.
+ * The storage is either direct memory or, for an arena of files, temporary files mapped into memory.
+ * The temporary files are deleted as soon as they are mapped, so nothing is left on disk even if the
+ * arena is never closed. Neither direct memory nor a mapping can be freed explicitly with the public JDK API
+ * (a buffer freed while some vector still holds a slice of it would crash the JVM instead of throwing), so close
+ * only drops the references: the memory is returned once the released storage becomes unreachable and is
+ * collected. The JDK collects it early when an allocation runs out of direct memory, through System.gc,
+ * which -XX:+DisableExplicitGC turns into a no-op.
+ */
+public final class OffHeapArena implements AutoCloseable {
+
+    private final Path directory; // where the mapped files are created, null for direct memory
+    private final List<OffHeapStorage> storages = new ArrayList<>();
+    private boolean closed = false;
+
+    private OffHeapArena(Path directory) {
+        this.directory = directory;
+    }
+
+    public static OffHeapArena ofDirect() {
+        return new OffHeapArena(null);
+    }
+
+    public static OffHeapArena ofFiles(Path directory) {
+        return new OffHeapArena(directory);
+    }
+
+    /**
+     * @return zeroed storage for count vectors of length doubles each
+     */
+    public synchronized OffHeapStorage allocate(int count, int length) {
+        return allocate(count, length, OffHeapStorage.MAX_CHUNK_BYTES);
+    }
+
+    synchronized OffHeapStorage allocate(int count, int length, long maxChunkBytes) {
+        if (closed) {
+            throw new IllegalStateException("The arena is closed");
+        }
+        OffHeapStorage storage = new OffHeapStorage(this, count, length, maxChunkBytes);
+        storages.add(storage);
+        return storage;
+    }
+
+    // one chunk of a storage, the byte order is set by the caller
+    ByteBuffer allocateChunk(long bytes) {
+        if (directory == null) {
+            return ByteBuffer.allocateDirect((int) bytes);
+        }
+        try {
+            Path file = Files.createTempFile(directory, "lae", ".bin");
+            // the mapping stays valid after the channel is closed (and the file deleted)
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map off-heap storage in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (OffHeapStorage storage : storages) {
+            storage.release();
+        }
+        storages.clear();
+        closed = true;
+    }
+}
@@ -0,0 +1,62 @@
+package memory;
+
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * Off-heap storage for count vectors of length doubles each, allocated from an OffHeapArena.
+ * A single buffer holds at most 2GB, so the vectors are split over chunks of whole vectors and
+ * no vector crosses two chunks. The storage can't be used after its arena is closed.
+ */
+public final class OffHeapStorage {
+
+    static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final int count;
+    private final int length;
+    private final int perChunk; // vectors per chunk
+    private volatile DoubleBuffer[] chunks;
+
+    OffHeapStorage(OffHeapArena arena, int count, int length, long maxChunkBytes) {
+        long vectorBytes = (long) length * Double.BYTES;
+        if (count < 0 || length < 0 || vectorBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't store " + count + " vectors of length " + length + " off-heap");
+        }
+        this.count = count;
+        this.length = length;
+        this.perChunk = (int) Math.max(1, Math.min(count, maxChunkBytes / Math.max(1, vectorBytes)));
+        DoubleBuffer[] newChunks = new DoubleBuffer[(count + perChunk - 1) / perChunk];
+        for (int c = 0; c < newChunks.length; c++) {
+            int vectors = Math.min(perChunk, count - c * perChunk);
+            newChunks[c] = arena.allocateChunk(vectors * vectorBytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        this.chunks = newChunks;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the vector at index as a buffer of length doubles. The data is not copied.
+     */
+    public DoubleBuffer vector(int index) {
+        DoubleBuffer[] current = chunks;
+        if (current == null) {
+            throw new IllegalStateException("The off-heap storage was released");
+        }
+        return current[index / perChunk].slice((index % perChunk) * length, length);
+    }
+
+    int chunkCount() {
+        return chunks.length;
+    }
+
+    void release() {
+        chunks = null;
+    }
+}
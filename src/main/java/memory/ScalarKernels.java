@@ -0,0 +1,57 @@
+package memory;
+
+/**
+ * Plain loops, used when the jdk.incubator.vector module isn't available.
+ */
+class ScalarKernels implements Kernels {
+
+    @Override
+    public void add(double[] a, int aOff, double[] b, int bOff, int len) {
+        for (int i = 0; i < len; i++) {
+            a[aOff + i] += b[bOff + i];
+        }
+    }
+
+    @Override
+    public void sub(double[] a, int aOff, double[] b, int bOff, int len) {
+        for (int i = 0; i < len; i++) {
+            a[aOff + i] -= b[bOff + i];
+        }
+    }
+
+    @Override
+    public void negate(double[] a, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            a[i] = -a[i];
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int len) {
+        double sum = 0;
+        for (int i = 0; i < len; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void block2x2(double[] a0, int oa0, double[] a1, int oa1, double[] b0, int ob0, double[] b1, int ob1,
+                         int len, double[] out, int out0, int out1) {
+        double c00 = 0, c01 = 0, c10 = 0, c11 = 0;
+        for (int p = 0; p < len; p++) {
+            double x0 = a0[oa0 + p];
+            double x1 = a1[oa1 + p];
+            double y0 = b0[ob0 + p];
+            double y1 = b1[ob1 + p];
+            c00 += x0 * y0;
+            c01 += x0 * y1;
+            c10 += x1 * y0;
+            c11 += x1 * y1;
+        }
+        out[out0] += c00;
+        out[out0 + 1] += c01;
+        out[out1] += c10;
+        out[out1 + 1] += c11;
+    }
+}
@@ -4,26 +4,94 @@ public class SharedMatrix {
 
     private volatile SharedVector[] vectors = {}; // underlying vectors
 
+    // in contiguous mode the whole matrix is copied into one flat array and the vectors are only views over it,
+    // so a load is a single allocation and neighbouring rows (or columns) sit next to each other in memory
+    private final boolean contiguous;
+    private volatile double[] data = null; // the flat backing array, null unless the matrix was loaded contiguously
+    // when set, loads copy the matrix into off-heap storage allocated from this arena instead of heap arrays
+    private final OffHeapArena arena;
+    // when set, contiguous loads take their flat array from here and release gives it back
+    private final BufferArena buffers;
+
     public SharedMatrix() {
         // TODO: initialize empty matrix
+        this(false);
+    }
+
+    public SharedMatrix(boolean contiguous) {
+        this.contiguous = contiguous;
+        this.arena = null;
+        this.buffers = null;
+        vectors = new SharedVector[0];
+    }
+
+    /**
+     * Creates a matrix whose loads are stored off-heap, in storage allocated from arena.
+     * The matrix can't be read after the arena is closed.
+     */
+    public SharedMatrix(OffHeapArena arena) {
+        this.contiguous = false;
+        this.arena = arena;
+        this.buffers = null;
+        vectors = new SharedVector[0];
+    }
+
+    /**
+     * Creates a contiguous matrix whose flat arrays come from buffers, see release.
+     */
+    public SharedMatrix(BufferArena buffers) {
+        this.contiguous = true;
+        this.arena = null;
+        this.buffers = buffers;
         vectors = new SharedVector[0];
     }
 
     public SharedMatrix(double[][] matrix) {
         // TODO: construct matrix as row-major SharedVectors
-        for(int i=0;i<matrix.length;i++){
-            vectors[i] = new SharedVector(matrix[i],VectorOrientation.ROW_MAJOR);
-        }
+        this(false);
+        vectors = rowVectors(matrix);
+    }
+
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    public boolean isOffHeap() {
+        return vectors.length > 0 && vectors[0].isOffHeap();
     }
 
     public void loadRowMajor(double[][] matrix) {
         // TODO: replace internal data with new row-major matrix
+        if (arena != null) {
+            OffHeapStorage storage = arena.allocate(matrix.length, matrix[0].length);
+            for (int row = 0; row < matrix.length; row++) {
+                storage.vector(row).put(0, matrix[row]);
+            }
+            loadOffHeap(storage, VectorOrientation.ROW_MAJOR);
+            return;
+        }
+        if (contiguous) {
+            int rows = matrix.length;
+            int cols = matrix[0].length;
+            double[] flat = allocateFlat(rows * cols);
+            for (int row = 0; row < rows; row++) {
+                System.arraycopy(matrix[row], 0, flat, row * cols, cols);
+            }
+            loadFlat(flat, rows, cols, VectorOrientation.ROW_MAJOR);
+            return;
+        }
+        this.vectors = rowVectors(matrix);
+        this.data = null;
+    }
+
+    // the rows of matrix as row vectors, each one a copy of its row of matrix
+    private static SharedVector[] rowVectors(double[][] matrix) {
         SharedVector[] newVectors = new SharedVector[matrix.length];
         for(int i=0 ; i<matrix.length ; i++){
             SharedVector vector = new SharedVector(matrix[i], VectorOrientation.ROW_MAJOR);
             newVectors[i] = vector;
         }
-        this.vectors = newVectors;
+        return newVectors;
     }
 
     // we load a column matrix by iterating over all the columns of the matrix and getting a vector of the value of each row and saving the vector as column vectors
@@ -31,6 +99,26 @@ public class SharedMatrix {
         int rows = matrix.length;
         int cols = matrix[0].length;
 
+        if (arena != null) {
+            OffHeapStorage storage = arena.allocate(cols, rows);
+            double[] columnData = new double[rows];
+            for (int col = 0; col < cols; col++) {
+                for (int row = 0; row < rows; row++) {
+                    columnData[row] = matrix[row][col];
+                }
+                storage.vector(col).put(0, columnData);
+            }
+            loadOffHeap(storage, VectorOrientation.COLUMN_MAJOR);
+            return;
+        }
+
+        if (contiguous) {
+            double[] flat = allocateFlat(rows * cols);
+            LayoutKernel.store(matrix, true, flat, rows, 0, cols);
+            loadFlat(flat, rows, cols, VectorOrientation.COLUMN_MAJOR);
+            return;
+        }
+
         SharedVector[] newVectors = new SharedVector[cols];
 
         for (int col = 0; col < cols; col++) {
@@ -42,39 +130,153 @@ public class SharedMatrix {
         }
 
         this.vectors = newVectors;
+        this.data = null;
     }
-    // if its a matrix by rows we simply get vectors[i][j] else we do get [j][i]
-    public double[][] readRowMajor() {
-        acquireAllVectorReadLocks(vectors);
 
-        try {
-            double[][] result;
-
-            if (getOrientation() == VectorOrientation.COLUMN_MAJOR) {
-                int numCols = vectors.length;
-                int numRows = vectors[0].length();
+    private double[] allocateFlat(int length) {
+        return buffers == null ? new double[length] : buffers.acquire(length);
+    }
 
-                result = new double[numRows][numCols];
+    /**
+     * Replaces the internal data with a rows x cols matrix that is already stored in one flat array.
+     * In ROW_MAJOR order row i starts at i * cols, in COLUMN_MAJOR order column j starts at j * rows.
+     * The array is not copied - the vectors of this matrix become views over it.
+     * The array may be longer than rows * cols (e.g. one from a BufferArena), the rest of it is not used.
+     */
+    public void loadFlat(double[] flat, int rows, int cols, VectorOrientation orientation) {
+        if (flat.length < rows * cols) {
+            throw new IllegalArgumentException("Flat data of length " + flat.length + " does not match a " + rows + "x" + cols + " matrix");
+        }
+        int count = orientation == VectorOrientation.ROW_MAJOR ? rows : cols;
+        int stride = orientation == VectorOrientation.ROW_MAJOR ? cols : rows;
+        SharedVector[] newVectors = new SharedVector[count];
+        for (int i = 0; i < count; i++) {
+            newVectors[i] = new SharedVector(flat, i * stride, stride, orientation);
+        }
+        this.vectors = newVectors;
+        this.data = flat;
+    }
 
-                for (int i = 0; i < numCols; i++) {
-                    for (int j = 0; j < numRows; j++) {
-                        result[j][i] = vectors[i].get(j);
-                    }
-                }
-            } else {
-                result = new double[vectors.length][vectors[0].length()];
-                for (int i = 0; i < vectors.length; i++) {
-                    for (int j = 0; j < vectors[i].length(); j++) {
-                        result[i][j] = vectors[i].get(j);
+    /**
+     * Replaces the internal data with a copy of the matrix held by source, stored with vectors in the given
+     * orientation (e.g. the columns of a row-major source). The copy goes straight from the vectors of source
+     * into the storage of this matrix, without a double[][] in between.
+     */
+    public void loadCopy(SharedMatrix source, VectorOrientation orientation) {
+        int rows = source.rows();
+        int cols = source.cols();
+        int count = orientation == VectorOrientation.ROW_MAJOR ? rows : cols;
+        int length = orientation == VectorOrientation.ROW_MAJOR ? cols : rows;
+        boolean sameLayout = source.getOrientation() == orientation;
+        if (arena != null) {
+            OffHeapStorage storage = arena.allocate(count, length);
+            double[] vectorData = new double[length];
+            for (int v = 0; v < count; v++) {
+                if (sameLayout) {
+                    source.get(v).copyTo(0, vectorData, 0, length);
+                } else {
+                    for (int k = 0; k < length; k++) {
+                        vectorData[k] = source.get(k).get(v);
                     }
                 }
+                storage.vector(v).put(0, vectorData);
             }
+            loadOffHeap(storage, orientation);
+            return;
+        }
+        double[] flat = allocateFlat(count * length);
+        LayoutKernel.store(source, orientation, flat, length, 0, count);
+        loadFlat(flat, rows, cols, orientation);
+    }
+
+    /**
+     * @return a matrix over the same storage as this one, with vectors of its own, so it can be transposed
+     * or frozen without touching this matrix. Writes through either matrix are visible in both.
+     */
+    public SharedMatrix view() {
+        SharedMatrix view = new SharedMatrix(contiguous);
+        SharedVector[] current = vectors;
+        SharedVector[] viewVectors = new SharedVector[current.length];
+        for (int i = 0; i < current.length; i++) {
+            viewVectors[i] = current[i].view();
+        }
+        view.vectors = viewVectors;
+        view.data = data;
+        return view;
+    }
+
+    /**
+     * Replaces the internal data with the vectors of storage, in the given orientation. Nothing is copied.
+     */
+    public void loadOffHeap(OffHeapStorage storage, VectorOrientation orientation) {
+        SharedVector[] newVectors = new SharedVector[storage.count()];
+        for (int i = 0; i < newVectors.length; i++) {
+            newVectors[i] = new SharedVector(storage.vector(i), orientation);
+        }
+        this.vectors = newVectors;
+        this.data = null;
+    }
+
+    /**
+     * Gives the flat array back to the BufferArena of this matrix (if it has one) and empties the matrix.
+     * Only call it once nothing reads or writes the matrix anymore, the array is handed to the next load.
+     */
+    public void release() {
+        double[] flat = data;
+        vectors = new SharedVector[0];
+        data = null;
+        if (buffers != null && flat != null) {
+            buffers.release(flat);
+        }
+    }
+
+    /**
+     * @return the flat backing array if the matrix was loaded contiguously, null otherwise.
+     * The array may be longer than the matrix, see loadFlat.
+     * Note that vecMatMul detaches the vector it is called on from this array.
+     */
+    public double[] getData() {
+        return data;
+    }
+    /**
+     * Freezes every vector (see SharedVector.freeze), for operands that are only read from now on:
+     * the tasks that read them, and readRowMajor, take no locks.
+     */
+    public void freeze() {
+        for (SharedVector vector : vectors) {
+            vector.freeze();
+        }
+    }
+
+    public boolean isFrozen() {
+        SharedVector[] current = vectors;
+        return current.length > 0 && current[0].isFrozen();
+    }
+
+    // if its a matrix by rows we simply get vectors[i][j] else we do get [j][i]
+    public double[][] readRowMajor() {
+        acquireAllVectorReadLocks(vectors);
+
+        try {
+            double[][] result = new double[rows()][cols()];
+            LayoutKernel.read(this, false, result, 0, result.length);
             return result;
         } finally {
             releaseAllVectorReadLocks(vectors);
         }
     }
 
+    /**
+     * Transposes the matrix by flipping the orientation of its vectors, no data is moved.
+     * The rows of a row-major matrix are the columns of its transpose, so it becomes the column-major
+     * storage of the transpose (and the other way around).
+     */
+    public void transpose() {
+        for (SharedVector vector : vectors) {
+            vector.transpose();
+        }
+    }
+
     public SharedVector get(int index) {
         // TODO: return vector at index
         return vectors[index];
@@ -85,6 +287,17 @@ public class SharedMatrix {
         return vectors.length;
     }
 
+    // the shape of the matrix held, whatever the orientation of its vectors
+    public int rows() {
+        SharedVector[] current = vectors;
+        return getOrientation() == VectorOrientation.ROW_MAJOR ? current.length : current[0].length();
+    }
+
+    public int cols() {
+        SharedVector[] current = vectors;
+        return getOrientation() == VectorOrientation.ROW_MAJOR ? current[0].length() : current.length;
+    }
+
     public VectorOrientation getOrientation() {
         // TODO: return orientation
         return vectors[0].getOrientation();
@@ -1,12 +1,19 @@
 package memory;
 
-import java.util.concurrent.locks.ReadWriteLock;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.locks.StampedLock;
 
 public class SharedVector {
 
     private double[] vector;
+    private int offset; // index of the first element inside vector (non zero only for views)
+    private int length;
+    private DoubleBuffer buffer = null; // the off-heap storage of the vector, null when it lives in vector
     private VectorOrientation orientation;
-    private ReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();
+    // not reentrant: a thread that holds the write lock can't take the read lock too
+    private final StampedLock lock = new StampedLock();
+    // a frozen vector is read-only, so reading it takes no lock at all (see freeze)
+    private volatile boolean frozen = false;
 
     public SharedVector(double[] vector, VectorOrientation orientation) {
         // TODO: store vector data and its orientation
@@ -15,16 +22,51 @@ public class SharedVector {
         for(int i=0;i<vector.length;i++){
             this.vector[i] = vector[i];
         }
+        this.offset = 0;
+        this.length = vector.length;
+    }
+
+    /**
+     * Creates a view over length elements of data starting at offset.
+     * The data is not copied, so writes through the view are visible in data (and the other way around).
+     */
+    public SharedVector(double[] data, int offset, int length, VectorOrientation orientation) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("View [" + offset + ", " + (offset + length) + ") is out of bounds for length " + data.length);
+        }
+        this.orientation = orientation;
+        this.vector = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates a vector over off-heap storage (see OffHeapStorage). The data is not copied.
+     */
+    public SharedVector(DoubleBuffer buffer, VectorOrientation orientation) {
+        this.orientation = orientation;
+        this.buffer = buffer;
+        this.offset = 0;
+        this.length = buffer.capacity();
+    }
+
+    // a new vector over the same storage, with a lock and orientation of its own
+    SharedVector view() {
+        return buffer != null ? new SharedVector(buffer, orientation) : new SharedVector(vector, offset, length, orientation);
     }
 
     public double get(int index) {
         // TODO: return element at index (read-locked)
-        return vector[index];
+        return buffer != null ? buffer.get(index) : vector[offset + index];
+    }
+
+    public boolean isOffHeap() {
+        return buffer != null;
     }
 
     public int length() {
         // TODO: return vector length
-        return vector.length;
+        return length;
     }
 
     public VectorOrientation getOrientation() {
@@ -32,20 +74,68 @@ public class SharedVector {
         return orientation;
     }
 
+    // the backing array and the offset of this vector inside it, used by the kernels of this package.
+    // off-heap vectors have no array, their elements are read with copyTo
+    double[] array() {
+        return vector;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    // copies the elements [from, from + len) into dst starting at dstOffset
+    void copyTo(int from, double[] dst, int dstOffset, int len) {
+        if (buffer != null) {
+            buffer.get(from, dst, dstOffset, len);
+        } else {
+            System.arraycopy(vector, offset + from, dst, dstOffset, len);
+        }
+    }
+
+    // the kernels only run on arrays, so an operation with an off-heap vector reads and writes the elements
+    // one at a time through these instead of copying the vector to the heap
+    private void set(int index, double value) {
+        if (buffer != null) {
+            buffer.put(index, value);
+        } else {
+            vector[offset + index] = value;
+        }
+    }
+
+    /**
+     * Makes the vector read-only for the rest of its life: the read locks become no-ops and writeLock throws.
+     * Freeze a vector before handing it to other threads, not while one of them holds its read lock.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public void writeLock() {
-        lock.writeLock().lock();
+        if (frozen) {
+            throw new IllegalStateException("The vector is frozen");
+        }
+        lock.asWriteLock().lock();
     }
 
     public void writeUnlock() {
-        lock.writeLock().unlock();
+        lock.asWriteLock().unlock();
     }
 
     public void readLock() {
-        lock.readLock().lock();
+        if (!frozen) {
+            lock.asReadLock().lock();
+        }
     }
 
     public void readUnlock() {
-        lock.readLock().unlock();
+        if (!frozen) {
+            lock.asReadLock().unlock();
+        }
     }
 
     public void transpose() {
@@ -54,42 +144,87 @@ public class SharedVector {
 
     public void add(SharedVector other) {
         // TODO: add two vectors
-        for(int i=0;i<vector.length;i++){
-            vector[i]=vector[i]+other.get(i);
+        if (buffer == null && other.buffer == null) {
+            VectorKernels.add(vector, offset, other.vector, other.offset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            set(i, get(i) + other.get(i));
         }
     }
 
     public void negate() {
         // TODO: negate vector
-        for(int i=0;i<vector.length;i++){
-            vector[i] = -vector[i];
+        if (buffer == null) {
+            VectorKernels.negate(vector, offset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer.put(i, -buffer.get(i));
         }
     }
 
     public double dot(SharedVector other) {
         // TODO: compute dot product (row · column)
-        double result = 0;
-        for(int i=0;i<vector.length;i++){
-           result += vector[i]*other.get(i);
+        return dot(other.vector, other.offset, other.buffer);
+    }
+
+    // the dot product with a vector stored in otherArray from otherOffset, or in otherBuffer if it isn't null
+    private double dot(double[] otherArray, int otherOffset, DoubleBuffer otherBuffer) {
+        if (buffer == null && otherBuffer == null) {
+            return VectorKernels.dot(vector, offset, otherArray, otherOffset, length);
+        }
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += get(i) * (otherBuffer != null ? otherBuffer.get(i) : otherArray[otherOffset + i]);
         }
-        return result;
+        return sum;
     }
 
     // in this operation we did use the locks on each column of the matrix because otherwise,
-    // we had to lock the entire matrix on the lae so instead we used the lock here on every column of the matrix
+    // we had to lock the entire matrix on the lae so instead we used the lock here on every column of the matrix.
+    // a frozen column is read without a lock, any other column optimistically (see lockedDot)
+    // the result usually has a different length than this vector, so a view (or an off-heap vector) is detached
+    // from its backing storage here
     public void vecMatMul(SharedMatrix matrix) {
         // TODO: compute row-vector × matrix
         double[] result = new double[matrix.length()];
         for(int i=0;i< matrix.length();i++){
-            SharedVector column = matrix.get(i);
-            column.readLock();
-            try {
-                result[i] = this.dot(column);
-            } finally {
-                column.readUnlock();
-            }
+            result[i] = lockedDot(matrix.get(i));
         }
         this.vector = result;
+        this.buffer = null;
+        this.offset = 0;
+        this.length = result.length;
+    }
+
+    // the dot product with other under an optimistic read: computed without the lock and only recomputed
+    // under the read lock if other was written meanwhile. The fields of other are read into locals and validated
+    // before they are used, since a writer (e.g. vecMatMul on other) may replace them meanwhile and a torn set
+    // could make the kernel throw before the final validate
+    private double lockedDot(SharedVector other) {
+        if (other.frozen) {
+            return dot(other);
+        }
+        long stamp = other.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            double[] otherArray = other.vector;
+            int otherOffset = other.offset;
+            int otherLength = other.length;
+            DoubleBuffer otherBuffer = other.buffer;
+            if (other.lock.validate(stamp) && otherLength == length) {
+                double value = dot(otherArray, otherOffset, otherBuffer);
+                if (other.lock.validate(stamp)) {
+                    return value;
+                }
+            }
+        }
+        other.readLock();
+        try {
+            return dot(other);
+        } finally {
+            other.readUnlock();
+        }
     }
 
 
@@ -0,0 +1,111 @@
+package memory;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels on top of the Vector API, using the widest species the CPU supports.
+ * Each loop runs over SPECIES.loopBound(len) elements in full vectors and finishes the tail with scalar code.
+ * Only loaded by VectorKernels after it checked that jdk.incubator.vector is present.
+ */
+class SimdKernels implements Kernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(double[] a, int aOff, double[] b, int bOff, int len) {
+        int i = 0;
+        int bound = SPECIES.loopBound(len);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            va.add(vb).intoArray(a, aOff + i);
+        }
+        for (; i < len; i++) {
+            a[aOff + i] += b[bOff + i];
+        }
+    }
+
+    @Override
+    public void sub(double[] a, int aOff, double[] b, int bOff, int len) {
+        int i = 0;
+        int bound = SPECIES.loopBound(len);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            va.sub(vb).intoArray(a, aOff + i);
+        }
+        for (; i < len; i++) {
+            a[aOff + i] -= b[bOff + i];
+        }
+    }
+
+    @Override
+    public void negate(double[] a, int off, int len) {
+        int i = 0;
+        int bound = SPECIES.loopBound(len);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, off + i).neg().intoArray(a, off + i);
+        }
+        for (; i < len; i++) {
+            a[off + i] = -a[off + i];
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int len) {
+        int i = 0;
+        int bound = SPECIES.loopBound(len);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < len; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void block2x2(double[] a0, int oa0, double[] a1, int oa1, double[] b0, int ob0, double[] b1, int ob1,
+                         int len, double[] out, int out0, int out1) {
+        int p = 0;
+        int bound = SPECIES.loopBound(len);
+        DoubleVector c00 = DoubleVector.zero(SPECIES);
+        DoubleVector c01 = DoubleVector.zero(SPECIES);
+        DoubleVector c10 = DoubleVector.zero(SPECIES);
+        DoubleVector c11 = DoubleVector.zero(SPECIES);
+        for (; p < bound; p += SPECIES.length()) {
+            DoubleVector x0 = DoubleVector.fromArray(SPECIES, a0, oa0 + p);
+            DoubleVector x1 = DoubleVector.fromArray(SPECIES, a1, oa1 + p);
+            DoubleVector y0 = DoubleVector.fromArray(SPECIES, b0, ob0 + p);
+            DoubleVector y1 = DoubleVector.fromArray(SPECIES, b1, ob1 + p);
+            c00 = x0.fma(y0, c00);
+            c01 = x0.fma(y1, c01);
+            c10 = x1.fma(y0, c10);
+            c11 = x1.fma(y1, c11);
+        }
+        double s00 = c00.reduceLanes(VectorOperators.ADD);
+        double s01 = c01.reduceLanes(VectorOperators.ADD);
+        double s10 = c10.reduceLanes(VectorOperators.ADD);
+        double s11 = c11.reduceLanes(VectorOperators.ADD);
+        for (; p < len; p++) {
+            double x0 = a0[oa0 + p];
+            double x1 = a1[oa1 + p];
+            double y0 = b0[ob0 + p];
+            double y1 = b1[ob1 + p];
+            s00 += x0 * y0;
+            s01 += x0 * y1;
+            s10 += x1 * y0;
+            s11 += x1 * y1;
+        }
+        out[out0] += s00;
+        out[out0 + 1] += s01;
+        out[out1] += s10;
+        out[out1 + 1] += s11;
+    }
+}
@@ -0,0 +1,141 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * Kernels over SparseMatrix operands. Every kernel computes a range of rows of its result, so an operation
+ * can be split into independent row-range tasks; the kernels that produce a sparse result return the rows
+ * of their range as a SparseMatrix of their own, and the ranges are put together with SparseMatrix.stack.
+ * Only the stored non-zeros are visited, values that cancel out to 0 are dropped from sparse results.
+ * So the elements that aren't stored are +0.0 in every result, where the dense kernels can compute -0.0
+ * (the negation of 0) or NaN (0 times NaN or infinity). That is why sparse leaves are opt-in (see InputParser).
+ * Takes no locks - a SparseMatrix is never written, and the caller must make sure a dense operand isn't either.
+ */
+public class SparseKernel {
+
+    private SparseKernel() {}
+
+    /**
+     * @return the rows [from, to) of a + b, both with the same shape
+     */
+    public static SparseMatrix add(SparseMatrix a, SparseMatrix b, int from, int to) {
+        int[] aStarts = a.rowStarts(), aColumns = a.columns();
+        int[] bStarts = b.rowStarts(), bColumns = b.columns();
+        double[] aValues = a.values(), bValues = b.values();
+        int capacity = aStarts[to] - aStarts[from] + bStarts[to] - bStarts[from];
+        int[] rowStarts = new int[to - from + 1];
+        int[] columns = new int[capacity];
+        double[] values = new double[capacity];
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            int p = aStarts[i], pEnd = aStarts[i + 1];
+            int q = bStarts[i], qEnd = bStarts[i + 1];
+            while (p < pEnd || q < qEnd) { // merges the two sorted rows
+                int column;
+                double value;
+                if (q == qEnd || (p < pEnd && aColumns[p] < bColumns[q])) {
+                    column = aColumns[p];
+                    value = aValues[p++];
+                } else if (p == pEnd || bColumns[q] < aColumns[p]) {
+                    column = bColumns[q];
+                    value = bValues[q++];
+                } else {
+                    column = aColumns[p];
+                    value = aValues[p++] + bValues[q++];
+                }
+                if (value != 0) {
+                    columns[next] = column;
+                    values[next++] = value;
+                }
+            }
+            rowStarts[i - from + 1] = next;
+        }
+        return new SparseMatrix(to - from, a.cols(), rowStarts, columns, values);
+    }
+
+    /**
+     * Adds the rows [from, to) of a to the same rows of out, a row-major array with a.cols() columns.
+     */
+    public static void addTo(SparseMatrix a, double[] out, int from, int to) {
+        int[] starts = a.rowStarts(), columns = a.columns();
+        double[] values = a.values();
+        int cols = a.cols();
+        for (int i = from; i < to; i++) {
+            int base = i * cols;
+            for (int k = starts[i]; k < starts[i + 1]; k++) {
+                out[base + columns[k]] += values[k];
+            }
+        }
+    }
+
+    /**
+     * Computes the rows [from, to) of a x b into out, a row-major array with bCols columns. b is a row-major
+     * array of a.cols() rows of bCols elements. Every row of out is built from the rows of b picked by the
+     * non-zeros of the same row of a, so b is read one contiguous row at a time. The rows are overwritten.
+     */
+    public static void multiply(SparseMatrix a, double[] b, int bCols, double[] out, int from, int to) {
+        int[] starts = a.rowStarts(), columns = a.columns();
+        double[] values = a.values();
+        for (int i = from; i < to; i++) {
+            int outBase = i * bCols;
+            Arrays.fill(out, outBase, outBase + bCols, 0);
+            for (int k = starts[i]; k < starts[i + 1]; k++) {
+                double scale = values[k];
+                int bBase = columns[k] * bCols;
+                for (int j = 0; j < bCols; j++) {
+                    out[outBase + j] += scale * b[bBase + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the rows [from, to) of a x b. Each row is accumulated in a dense row of b.cols() elements
+     * (Gustavson's algorithm), and only the columns it touched are collected.
+     */
+    public static SparseMatrix multiply(SparseMatrix a, SparseMatrix b, int from, int to) {
+        int[] aStarts = a.rowStarts(), aColumns = a.columns();
+        int[] bStarts = b.rowStarts(), bColumns = b.columns();
+        double[] aValues = a.values(), bValues = b.values();
+        int cols = b.cols();
+        double[] accumulator = new double[cols];
+        int[] touchedBy = new int[cols]; // the last row (+ 1) that touched each column
+        int[] touched = new int[cols];
+        int[] rowStarts = new int[to - from + 1];
+        int capacity = Math.max(16, aStarts[to] - aStarts[from]);
+        int[] columns = new int[capacity];
+        double[] values = new double[capacity];
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            int count = 0;
+            for (int p = aStarts[i]; p < aStarts[i + 1]; p++) {
+                double scale = aValues[p];
+                int k = aColumns[p];
+                for (int q = bStarts[k]; q < bStarts[k + 1]; q++) {
+                    int j = bColumns[q];
+                    if (touchedBy[j] != i + 1) {
+                        touchedBy[j] = i + 1;
+                        touched[count++] = j;
+                        accumulator[j] = 0;
+                    }
+                    accumulator[j] += scale * bValues[q];
+                }
+            }
+            Arrays.sort(touched, 0, count);
+            if (next + count > columns.length) {
+                int grown = Math.max(next + count, columns.length * 2);
+                columns = Arrays.copyOf(columns, grown);
+                values = Arrays.copyOf(values, grown);
+            }
+            for (int t = 0; t < count; t++) {
+                double value = accumulator[touched[t]];
+                if (value != 0) {
+                    columns[next] = touched[t];
+                    values[next++] = value;
+                }
+            }
+            rowStarts[i - from + 1] = next;
+        }
+        return new SparseMatrix(to - from, cols, rowStarts, columns, values);
+    }
+}
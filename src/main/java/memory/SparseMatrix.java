@@ -0,0 +1,210 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * A matrix in compressed sparse row (CSR) form: the non-zero values of row i and their columns are
+ * values[rowStarts[i] .. rowStarts[i + 1]) and columns[rowStarts[i] .. rowStarts[i + 1]), the columns of a row
+ * in ascending order. The CSR form of a matrix is also the compressed sparse column (CSC) form of its transpose,
+ * so a node that holds a SparseMatrix transposed (see ComputationNode.isTransposed) is stored by columns.
+ * A SparseMatrix is never written after it is built, so it is read without locks.
+ */
+public final class SparseMatrix {
+
+    private final int rows;
+    private final int cols;
+    private final int[] rowStarts;
+    private final int[] columns;
+    private final double[] values;
+
+    /**
+     * Wraps the given CSR arrays without copying them. columns and values may be longer than rowStarts[rows].
+     */
+    public SparseMatrix(int rows, int cols, int[] rowStarts, int[] columns, double[] values) {
+        if (rowStarts.length != rows + 1 || columns.length < rowStarts[rows] || values.length < rowStarts[rows]) {
+            throw new IllegalArgumentException("Invalid CSR arrays for a " + rows + "x" + cols + " matrix");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStarts = rowStarts;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    public static int countNonZeros(double[][] matrix) {
+        int count = 0;
+        for (double[] row : matrix) {
+            for (double value : row) {
+                if (value != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public static SparseMatrix fromDense(double[][] matrix) {
+        int rows = matrix.length;
+        int cols = rows == 0 ? 0 : matrix[0].length;
+        int count = countNonZeros(matrix);
+        int[] rowStarts = new int[rows + 1];
+        int[] columns = new int[count];
+        double[] values = new double[count];
+        int next = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (matrix[i][j] != 0) {
+                    columns[next] = j;
+                    values[next++] = matrix[i][j];
+                }
+            }
+            rowStarts[i + 1] = next;
+        }
+        return new SparseMatrix(rows, cols, rowStarts, columns, values);
+    }
+
+    /**
+     * @return the matrix whose rows are the rows of blocks one after the other. There must be at least one block,
+     * and all of them must have the same number of columns
+     */
+    public static SparseMatrix stack(SparseMatrix[] blocks) {
+        int cols = blocks[0].cols;
+        int rows = 0;
+        int count = 0;
+        for (SparseMatrix block : blocks) {
+            rows += block.rows;
+            count += block.nonZeros();
+        }
+        int[] rowStarts = new int[rows + 1];
+        int[] columns = new int[count];
+        double[] values = new double[count];
+        int row = 0;
+        int next = 0;
+        for (SparseMatrix block : blocks) {
+            int blockCount = block.nonZeros();
+            System.arraycopy(block.columns, 0, columns, next, blockCount);
+            System.arraycopy(block.values, 0, values, next, blockCount);
+            for (int i = 0; i < block.rows; i++) {
+                rowStarts[++row] = next + block.rowStarts[i + 1];
+            }
+            next += blockCount;
+        }
+        return new SparseMatrix(rows, cols, rowStarts, columns, values);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public int nonZeros() {
+        return rowStarts[rows];
+    }
+
+    // the CSR arrays themselves, for the kernels. They must not be written
+    public int[] rowStarts() {
+        return rowStarts;
+    }
+
+    public int[] columns() {
+        return columns;
+    }
+
+    public double[] values() {
+        return values;
+    }
+
+    /**
+     * @return true if a dense row-major array of the matrix takes no more memory than its CSR arrays
+     */
+    public boolean isDenseCheaper() {
+        long sparseBytes = (long) nonZeros() * (Double.BYTES + Integer.BYTES) + (long) (rows + 1) * Integer.BYTES;
+        return (long) rows * cols * Double.BYTES <= sparseBytes;
+    }
+
+    /**
+     * @return the CSR form of the transpose (the CSC form of this matrix), built with one counting pass
+     */
+    public SparseMatrix transpose() {
+        int count = nonZeros();
+        int[] starts = new int[cols + 1];
+        for (int k = 0; k < count; k++) {
+            starts[columns[k] + 1]++;
+        }
+        for (int j = 0; j < cols; j++) {
+            starts[j + 1] += starts[j];
+        }
+        int[] next = Arrays.copyOf(starts, cols);
+        int[] transposedColumns = new int[count];
+        double[] transposedValues = new double[count];
+        for (int i = 0; i < rows; i++) { // rows in order, so the columns of every transposed row stay sorted
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                int position = next[columns[k]]++;
+                transposedColumns[position] = i;
+                transposedValues[position] = values[k];
+            }
+        }
+        return new SparseMatrix(cols, rows, starts, transposedColumns, transposedValues);
+    }
+
+    /**
+     * @return -this, with the same structure arrays. The elements that aren't stored stay +0.0, not -0.0
+     */
+    public SparseMatrix negate() {
+        double[] negated = new double[nonZeros()];
+        for (int k = 0; k < negated.length; k++) {
+            negated[k] = -values[k];
+        }
+        return new SparseMatrix(rows, cols, rowStarts, columns, negated);
+    }
+
+    /**
+     * Writes the matrix into the first rows * cols elements of flat, row-major, or column-major if columns is true.
+     */
+    public void toFlat(double[] flat, boolean columns) {
+        Arrays.fill(flat, 0, rows * cols, 0);
+        for (int i = 0; i < rows; i++) {
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                int j = this.columns[k];
+                flat[columns ? j * rows + i : i * cols + j] = values[k];
+            }
+        }
+    }
+
+    public double[][] toDense() {
+        double[][] dense = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                dense[i][columns[k]] = values[k];
+            }
+        }
+        return dense;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SparseMatrix)) {
+            return false;
+        }
+        SparseMatrix other = (SparseMatrix) o;
+        int count = nonZeros();
+        return rows == other.rows && cols == other.cols
+                && Arrays.equals(rowStarts, other.rowStarts)
+                && Arrays.equals(columns, 0, count, other.columns, 0, count)
+                && Arrays.equals(values, 0, count, other.values, 0, count);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 31 * rows + cols;
+        h = 31 * h + Arrays.hashCode(rowStarts);
+        for (int k = 0; k < nonZeros(); k++) {
+            h = 31 * h + columns[k];
+            h = 31 * h + Double.hashCode(values[k]);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,59 @@
+package memory;
+
+/**
+ * Entry point to the vector kernels.
+ * Uses the SIMD implementation when the JVM was started with --add-modules jdk.incubator.vector
+ * and falls back to plain loops otherwise. Setting -Dlae.kernels=scalar forces the fallback.
+ */
+public final class VectorKernels {
+
+    private static final Kernels KERNELS = load();
+
+    private VectorKernels() {}
+
+    private static Kernels load() {
+        if ("scalar".equals(System.getProperty("lae.kernels"))) {
+            return new ScalarKernels();
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return new ScalarKernels();
+        }
+        try {
+            return new SimdKernels();
+        } catch (LinkageError e) { // the module is there but the vector classes couldn't be linked
+            return new ScalarKernels();
+        }
+    }
+
+    /**
+     * @return true if the SIMD kernels are in use
+     */
+    public static boolean isSimd() {
+        return !(KERNELS instanceof ScalarKernels);
+    }
+
+    static Kernels active() {
+        return KERNELS;
+    }
+
+    public static void add(double[] a, int aOff, double[] b, int bOff, int len) {
+        KERNELS.add(a, aOff, b, bOff, len);
+    }
+
+    public static void sub(double[] a, int aOff, double[] b, int bOff, int len) {
+        KERNELS.sub(a, aOff, b, bOff, len);
+    }
+
+    public static void negate(double[] a, int off, int len) {
+        KERNELS.negate(a, off, len);
+    }
+
+    public static double dot(double[] a, int aOff, double[] b, int bOff, int len) {
+        return KERNELS.dot(a, aOff, b, bOff, len);
+    }
+
+    static void block2x2(double[] a0, int oa0, double[] a1, int oa1, double[] b0, int ob0, double[] b1, int ob1,
+                         int len, double[] out, int out0, int out1) {
+        KERNELS.block2x2(a0, oa0, a1, oa1, b0, ob0, b1, ob1, len, out, out0, out1);
+    }
+}
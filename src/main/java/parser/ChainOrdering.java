@@ -0,0 +1,196 @@
+package parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the cheapest association of every n-ary multiplication in the tree with the classic
+ * matrix-chain dynamic program, instead of the fixed left-associative nesting.
+ * For A (1000x10) * B (10x1000) * C (1000x10), (A * B) * C costs 2 * 10^7 multiply-adds while
+ * A * (B * C) costs 2 * 10^5.
+ */
+public class ChainOrdering {
+
+    // the dynamic program is cubic in the chain length, longer chains keep the left-associative nesting
+    public static final int MAX_CHAIN_LENGTH = 512;
+
+    /**
+     * The estimated floating point operations (2 per multiply-add) of the reordered chains,
+     * with the left-associative nesting and with the chosen association.
+     */
+    public static class Report {
+        private final int chains;
+        private final long flopsBefore;
+        private final long flopsAfter;
+
+        private Report(int chains, long flopsBefore, long flopsAfter) {
+            this.chains = chains;
+            this.flopsBefore = flopsBefore;
+            this.flopsAfter = flopsAfter;
+        }
+
+        public int getChains() {
+            return chains;
+        }
+
+        public long getFlopsBefore() {
+            return flopsBefore;
+        }
+
+        public long getFlopsAfter() {
+            return flopsAfter;
+        }
+
+        @Override
+        public String toString() {
+            return "Matrix chains reordered: " + chains + "\tEstimated FLOPs: " + flopsBefore + " -> " + flopsAfter;
+        }
+    }
+
+    private ChainOrdering() {}
+
+    /**
+     * Rewrites every multiplication with more than two operands (and at most MAX_CHAIN_LENGTH) into a
+     * binary tree of multiplications with the fewest estimated FLOPs. Chains whose shapes are unknown or
+     * don't match are left as they are, so the engine reports the mismatch as usual.
+     * Must run before ComputationNode.associativeNesting.
+     */
+    public static Report apply(ComputationNode root) {
+        Map<ComputationNode, int[]> shapes = inferShapes(root);
+        int chains = 0;
+        long before = 0, after = 0;
+
+        Deque<ComputationNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            ComputationNode node = stack.pop();
+            List<ComputationNode> children = node.getChildren();
+            if (children == null) {
+                continue;
+            }
+            for (ComputationNode child : children) {
+                stack.push(child);
+            }
+            if (node.getNodeType() != ComputationNodeType.MULTIPLY || children.size() <= 2 || children.size() > MAX_CHAIN_LENGTH) {
+                continue;
+            }
+            long[] dims = chainDimensions(children, shapes);
+            if (dims == null) {
+                continue;
+            }
+            int n = children.size();
+            long[][] cost = new long[n][n];
+            int[][] split = new int[n][n];
+            for (int length = 2; length <= n; length++) {
+                for (int i = 0; i + length - 1 < n; i++) {
+                    int j = i + length - 1;
+                    cost[i][j] = Long.MAX_VALUE;
+                    for (int k = i; k < j; k++) {
+                        long c = cost[i][k] + cost[k + 1][j] + 2 * dims[i] * dims[k + 1] * dims[j + 1];
+                        if (c < cost[i][j]) {
+                            cost[i][j] = c;
+                            split[i][j] = k;
+                        }
+                    }
+                }
+            }
+            long leftAssociative = 0;
+            for (int k = 1; k < n; k++) {
+                leftAssociative += 2 * dims[0] * dims[k] * dims[k + 1];
+            }
+            chains++;
+            before += leftAssociative;
+            after += cost[0][n - 1];
+            int s = split[0][n - 1];
+            node.setChildren(List.of(build(children, split, 0, s), build(children, split, s + 1, n - 1)));
+        }
+        return new Report(chains, before, after);
+    }
+
+    // builds the product of children[i..j] following the split table
+    private static ComputationNode build(List<ComputationNode> children, int[][] split, int i, int j) {
+        if (i == j) {
+            return children.get(i);
+        }
+        int s = split[i][j];
+        List<ComputationNode> factors = new ArrayList<>();
+        factors.add(build(children, split, i, s));
+        factors.add(build(children, split, s + 1, j));
+        return new ComputationNode(ComputationNodeType.MULTIPLY, factors);
+    }
+
+    // dims[k] x dims[k + 1] is the shape of operand k, or null if a shape is unknown or the chain doesn't match
+    private static long[] chainDimensions(List<ComputationNode> children, Map<ComputationNode, int[]> shapes) {
+        long[] dims = new long[children.size() + 1];
+        for (int k = 0; k < children.size(); k++) {
+            int[] shape = shapes.get(children.get(k));
+            if (shape == null || (k > 0 && shape[0] != dims[k])) {
+                return null;
+            }
+            dims[k] = shape[0];
+            dims[k + 1] = shape[1];
+        }
+        return dims;
+    }
+
+    // computes {rows, cols} of every node bottom-up, nodes with an invalid shape are left out
+    private static Map<ComputationNode, int[]> inferShapes(ComputationNode root) {
+        Map<ComputationNode, int[]> shapes = new IdentityHashMap<>();
+        for (ComputationNode node : ComputationNode.postOrder(root)) {
+            int[] shape = node.getNodeType() == ComputationNodeType.MATRIX
+                    ? new int[]{node.getRows(), node.getCols()}
+                    : shapeOf(node, shapes);
+            if (shape != null) {
+                shapes.put(node, shape);
+            }
+        }
+        return shapes;
+    }
+
+    private static int[] shapeOf(ComputationNode node, Map<ComputationNode, int[]> shapes) {
+        List<ComputationNode> children = node.getChildren();
+        List<int[]> childShapes = new ArrayList<>();
+        for (ComputationNode child : children) {
+            int[] shape = shapes.get(child);
+            if (shape == null) {
+                return null;
+            }
+            childShapes.add(shape);
+        }
+        int[] first = childShapes.get(0);
+        switch (node.getNodeType()) {
+            case NEGATE:
+                return first;
+            case TRANSPOSE:
+                return new int[]{first[1], first[0]};
+            case ADD:
+                for (int[] shape : childShapes) {
+                    if (shape[0] != first[0] || shape[1] != first[1]) {
+                        return null;
+                    }
+                }
+                return first;
+            case MULTIPLY:
+                for (int k = 1; k < childShapes.size(); k++) {
+                    if (childShapes.get(k)[0] != childShapes.get(k - 1)[1]) {
+                        return null;
+                    }
+                }
+                return new int[]{first[0], childShapes.get(childShapes.size() - 1)[1]};
+            case FUSED:
+                FusedExpression expression = node.getFusedExpression();
+                if (expression.hasProduct()) {
+                    return new int[]{childShapes.get(expression.getProductLeft())[0], childShapes.get(expression.getProductRight())[1]};
+                }
+                FusedExpression.Term term = expression.getTerms().get(0);
+                int[] shape = childShapes.get(term.getChild());
+                return term.isTransposed() ? new int[]{shape[1], shape[0]} : shape;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges structurally identical subtrees so each of them is computed once.
+ * Two nodes are identical if they have the same operation and identical children in the same order,
+ * and two matrices are identical if they have the same content (compared by a content hash first).
+ * After the pass the tree is a DAG: every parent of a repeated subtree points at the same node,
+ * so resolving that node resolves it for all of them.
+ */
+public class CommonSubexpressions {
+
+    private CommonSubexpressions() {}
+
+    // the structural identity of a node, given that its children were already replaced by their canonical nodes
+    private static class Key {
+        private final ComputationNode node;
+        private final int hash;
+
+        private Key(ComputationNode node) {
+            this.node = node;
+            int h = node.getNodeType().hashCode();
+            if (node.getNodeType() == ComputationNodeType.MATRIX) {
+                // a sparse leaf is compared by its CSR arrays, so it's never made dense here
+                h = 31 * h + (node.getSparseMatrix() != null ? node.getSparseMatrix().hashCode()
+                        : Arrays.deepHashCode(node.getStoredMatrix()));
+                h = 31 * h + Boolean.hashCode(node.isTransposed());
+            } else {
+                for (ComputationNode child : node.getChildren()) {
+                    h = 31 * h + System.identityHashCode(child);
+                }
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            ComputationNode other = ((Key) o).node;
+            if (hash != ((Key) o).hash || node.getNodeType() != other.getNodeType()) {
+                return false;
+            }
+            if (node.getNodeType() == ComputationNodeType.MATRIX) {
+                if (node.getSparseMatrix() != null || other.getSparseMatrix() != null) {
+                    return node.isTransposed() == other.isTransposed()
+                            && node.getSparseMatrix() != null && node.getSparseMatrix().equals(other.getSparseMatrix());
+                }
+                return node.isTransposed() == other.isTransposed()
+                        && (node.getStoredMatrix() == other.getStoredMatrix()
+                        || Arrays.deepEquals(node.getStoredMatrix(), other.getStoredMatrix()));
+            }
+            if (node.getNodeType() == ComputationNodeType.FUSED) { // the expression would have to be compared too
+                return node == other;
+            }
+            List<ComputationNode> children = node.getChildren();
+            List<ComputationNode> otherChildren = other.getChildren();
+            if (children.size() != otherChildren.size()) {
+                return false;
+            }
+            for (int i = 0; i < children.size(); i++) {
+                if (children.get(i) != otherChildren.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Merges the identical subtrees under root in place.
+     * @return the number of nodes that were replaced by an identical node
+     */
+    public static int apply(ComputationNode root) {
+        Map<ComputationNode, ComputationNode> canonical = new IdentityHashMap<>();
+        Map<Key, ComputationNode> byKey = new HashMap<>();
+        int merged = 0;
+        for (ComputationNode node : ComputationNode.postOrder(root)) {
+            List<ComputationNode> children = node.getChildren();
+            if (children != null) {
+                List<ComputationNode> canonicalChildren = new ArrayList<>(children.size());
+                boolean changed = false;
+                for (ComputationNode child : children) {
+                    ComputationNode replacement = canonical.get(child);
+                    canonicalChildren.add(replacement);
+                    changed |= replacement != child;
+                }
+                if (changed) {
+                    node.setChildren(canonicalChildren);
+                }
+            }
+            ComputationNode existing = byKey.putIfAbsent(new Key(node), node);
+            if (existing == null) {
+                canonical.put(node, node);
+            } else {
+                canonical.put(node, existing);
+                merged++;
+            }
+        }
+        return merged;
+    }
+}
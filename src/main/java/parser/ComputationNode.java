@@ -1,12 +1,28 @@
 package parser;
 
+import memory.SharedMatrix;
+import memory.SparseMatrix;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 public class ComputationNode {
 
     private ComputationNodeType nodeType;
     private List<ComputationNode> children = null;
     private double[][] matrix = null; // only used for MATRIX nodes
+    // the engine's storage of a computed node, read by the next operations as is. matrix is only filled from it
+    // when someone asks for a double[][] (see getStoredMatrix)
+    private SharedMatrix sharedMatrix = null;
+    // the value of a sparse leaf or sparse result, matrix is only filled from it like from sharedMatrix
+    private SparseMatrix sparseMatrix = null;
+    private boolean transposed = false; // true if matrix holds the transpose of this node's value
+    private FusedExpression fusedExpression = null; // only used for FUSED nodes
 
     public ComputationNode(String operatorStr, List<ComputationNode> children) throws IllegalArgumentException {
         this.nodeType = mapOperator(operatorStr);
@@ -34,8 +50,21 @@ public class ComputationNode {
     }
 
     public ComputationNode(double[][] matrix) {
+        this(matrix, false);
+    }
+
+    // a leaf whose value is the transpose of matrix, see isTransposed
+    public ComputationNode(double[][] matrix, boolean transposed) {
         this.nodeType = ComputationNodeType.MATRIX;
         this.matrix = matrix;
+        this.transposed = transposed;
+    }
+
+    // a sparse leaf, whose value is the transpose of matrix if transposed is true
+    public ComputationNode(SparseMatrix matrix, boolean transposed) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.sparseMatrix = matrix;
+        this.transposed = transposed;
     }
 
     public ComputationNodeType getNodeType() {
@@ -46,6 +75,22 @@ public class ComputationNode {
         return children;
     }
 
+    // replaces the operands of this operation, used by the planning passes of this package
+    void setChildren(List<ComputationNode> children) {
+        this.children = children;
+    }
+
+    public FusedExpression getFusedExpression() {
+        return fusedExpression;
+    }
+
+    // turns this node into a FUSED node computing expression over children, see FusionPass
+    void fuse(FusedExpression expression, List<ComputationNode> children) {
+        this.nodeType = ComputationNodeType.FUSED;
+        this.children = children;
+        this.fusedExpression = expression;
+    }
+
     /**
      * Recursively finds the first resolvable node in the tree.
      * A resolvable node is defined as a node that is not of type MATRIX,
@@ -66,18 +111,66 @@ public class ComputationNode {
         return this;
     }
 
+    /**
+     * Lists the nodes under root (including it) so that every node comes after all of its children.
+     * Subtrees shared by several parents (see CommonSubexpressions) are listed once.
+     * The tree is walked with an explicit stack so deep trees don't overflow the call stack.
+     */
+    static List<ComputationNode> postOrder(ComputationNode root) {
+        List<ComputationNode> order = new ArrayList<>();
+        Set<ComputationNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<ComputationNode> stack = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>(); // false the first time a node is seen, true once its children are listed
+        stack.push(root);
+        expanded.push(false);
+        while (!stack.isEmpty()) {
+            ComputationNode node = stack.pop();
+            boolean childrenDone = expanded.pop();
+            if (childrenDone) {
+                order.add(node);
+                continue;
+            }
+            if (!seen.add(node)) {
+                continue;
+            }
+            stack.push(node);
+            expanded.push(true);
+            if (node.children != null) {
+                for (int i = node.children.size() - 1; i >= 0; i--) {
+                    stack.push(node.children.get(i));
+                    expanded.push(false);
+                }
+            }
+        }
+        return order;
+    }
+
     /**
      * Restructures the tree to ensure that operations with more than two operands
      * are nested in a left-associative manner.
      * For example, A + B + C becomes (A + B) + C.
      * Effectively, this converts n-ary operations (n > 2) into binary operations.
+     * Every node of the tree is restructured, not only this one. The tree is walked with an explicit stack
+     * so long chains don't overflow the call stack.
      */
     public void associativeNesting() {
-        if (children != null && children.size() > 2) {
-            ComputationNode lastChild = children.remove(children.size() - 1);
-            ComputationNode newNode = new ComputationNode(nodeType, children);
-            children = List.of(newNode, lastChild);
-            newNode.associativeNesting();
+        Deque<ComputationNode> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            ComputationNode node = stack.pop();
+            if (node.children == null) {
+                continue;
+            }
+            if (node.children.size() > 2 && node.nodeType != ComputationNodeType.FUSED) {
+                ComputationNode nested = new ComputationNode(node.nodeType, List.of(node.children.get(0), node.children.get(1)));
+                for (int i = 2; i < node.children.size() - 1; i++) {
+                    nested = new ComputationNode(node.nodeType, List.of(nested, node.children.get(i)));
+                }
+                node.children = List.of(nested, node.children.get(node.children.size() - 1));
+            }
+            for (ComputationNode child : node.children) {
+                stack.push(child);
+            }
         }
     }
 
@@ -85,17 +178,131 @@ public class ComputationNode {
      * Resolves this node by setting its type to MATRIX and storing the computed matrix.
      */
     public void resolve(double[][] matrix) {
+        resolve(matrix, false);
+    }
+
+    /**
+     * Resolves this node like resolve(matrix), but if transposed is true the value of the node is the
+     * transpose of matrix. Nothing is copied - the transpose is only materialized if getMatrix is called.
+     */
+    public void resolve(double[][] matrix, boolean transposed) {
         this.nodeType = ComputationNodeType.MATRIX;
         this.children = null;
+        this.fusedExpression = null;
         this.matrix = matrix;
+        this.sharedMatrix = null;
+        this.sparseMatrix = null;
+        this.transposed = transposed;
     }
 
-    public double[][] getMatrix() {
+    /**
+     * Resolves this node to the matrix held by result (or its transpose, if transposed is true) without copying it,
+     * so the operations that use this node can read the engine's storage directly. A double[][] is only made
+     * if getStoredMatrix or getMatrix is called, e.g. for the root. result must not be written anymore.
+     */
+    public void resolve(SharedMatrix result, boolean transposed) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.fusedExpression = null;
+        this.matrix = null;
+        this.sharedMatrix = result;
+        this.sparseMatrix = null;
+        this.transposed = transposed;
+    }
+
+    /**
+     * Resolves this node to a sparse matrix (or its transpose, if transposed is true), see resolve(SharedMatrix, boolean).
+     */
+    public void resolve(SparseMatrix result, boolean transposed) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.fusedExpression = null;
+        this.matrix = null;
+        this.sharedMatrix = null;
+        this.sparseMatrix = result;
+        this.transposed = transposed;
+    }
+
+    /**
+     * @return the engine's storage of this node if it was resolved to one, null otherwise.
+     * Like getStoredMatrix, it holds the transpose of this node's value when isTransposed() is true
+     */
+    public SharedMatrix getSharedMatrix() {
+        return sharedMatrix;
+    }
+
+    /**
+     * @return the sparse matrix of this node if it is a sparse leaf or was resolved to one, null otherwise.
+     * Like getStoredMatrix, it holds the transpose of this node's value when isTransposed() is true
+     */
+    public SparseMatrix getSparseMatrix() {
+        return sparseMatrix;
+    }
+
+    /**
+     * @return true if the stored matrix is the transpose of the value of this node
+     */
+    public boolean isTransposed() {
+        return transposed;
+    }
+
+    /**
+     * @return the matrix as it is stored, the transpose of this node's value when isTransposed() is true
+     */
+    public double[][] getStoredMatrix() {
+        if (matrix == null && sharedMatrix != null) {
+            if (sharedMatrix.length() == 0) {
+                throw new IllegalStateException("The matrix of this node was released.");
+            }
+            matrix = sharedMatrix.readRowMajor();
+        }
+        if (matrix == null && sparseMatrix != null) {
+            matrix = sparseMatrix.toDense();
+        }
         if (matrix == null) {
             throw new IllegalStateException("This node does not contain a matrix.");
         }
         return matrix;
     }
 
+    public int getRows() {
+        if (matrix == null && sharedMatrix != null) {
+            return transposed ? sharedMatrix.cols() : sharedMatrix.rows();
+        }
+        if (matrix == null && sparseMatrix != null) {
+            return transposed ? sparseMatrix.cols() : sparseMatrix.rows();
+        }
+        double[][] stored = getStoredMatrix();
+        return transposed ? stored[0].length : stored.length;
+    }
+
+    public int getCols() {
+        if (matrix == null && sharedMatrix != null) {
+            return transposed ? sharedMatrix.rows() : sharedMatrix.cols();
+        }
+        if (matrix == null && sparseMatrix != null) {
+            return transposed ? sparseMatrix.rows() : sparseMatrix.cols();
+        }
+        double[][] stored = getStoredMatrix();
+        return transposed ? stored.length : stored[0].length;
+    }
+
+    public double[][] getMatrix() {
+        double[][] stored = getStoredMatrix();
+        if (transposed) { // materialize the transpose once, from now on it is stored as is
+            double[][] value = new double[stored[0].length][stored.length];
+            for (int i = 0; i < stored.length; i++) {
+                for (int j = 0; j < stored[i].length; j++) {
+                    value[j][i] = stored[i][j];
+                }
+            }
+            matrix = value;
+            sharedMatrix = null; // they hold the transpose
+            sparseMatrix = null;
+            transposed = false;
+        }
+        return matrix;
+    }
+
 
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package parser;
 /**
  * Computation nodes hold either an operation to be applied, or a matrix (2D array).
  * Matrices are always leaf nodes, while operation nodes have children.
+ * FUSED nodes are never parsed, they are created by FusionPass and describe their operation with a FusedExpression.
  */
 public enum ComputationNodeType {
     ADD,
@@ -10,4 +11,5 @@ public enum ComputationNodeType {
     NEGATE,
     TRANSPOSE,
     MATRIX,
+    FUSED,
 }
\ No newline at end of file
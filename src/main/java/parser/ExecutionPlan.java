@@ -0,0 +1,164 @@
+package parser;
+
+import memory.VectorOrientation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A computation tree compiled once into a flat list of steps, one per operation node, in post-order.
+ * Every step has a slot (its index in the list), the slots of the operation nodes it depends on
+ * and the slots of the steps that consume its result, so an executor can track readiness with counters
+ * instead of searching the tree after every resolved node.
+ * Every step also gets the layout its consumers read its result in (see Step.getLayout), so it can be
+ * computed in that layout instead of being converted by every consumer.
+ */
+public class ExecutionPlan {
+
+    public static class Step {
+        private final int slot;
+        private final ComputationNode node;
+        private final List<Integer> dependencies = new ArrayList<>(); // slots of the children that are operations
+        private final List<Integer> consumers = new ArrayList<>(); // slots of the parents, empty for the root
+        private VectorOrientation layout = null;
+
+        private Step(int slot, ComputationNode node) {
+            this.slot = slot;
+            this.node = node;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public ComputationNode getNode() {
+            return node;
+        }
+
+        public List<Integer> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * @return the slots of the steps that use the result of this step. A subtree that appears several
+         * times in the input is computed by one step with several consumers.
+         */
+        public List<Integer> getConsumers() {
+            return consumers;
+        }
+
+        /**
+         * @return ROW_MAJOR if the consumers read the result of this step by rows (e.g. the left operand of a
+         * product), COLUMN_MAJOR if they read it by columns (the right operand), null if they read it either way
+         * or don't agree
+         */
+        public VectorOrientation getLayout() {
+            return layout;
+        }
+    }
+
+    private final List<Step> steps;
+    private final ChainOrdering.Report chainOrdering;
+
+    private ExecutionPlan(List<Step> steps, ChainOrdering.Report chainOrdering) {
+        this.steps = steps;
+        this.chainOrdering = chainOrdering;
+    }
+
+    /**
+     * Reorders the multiplication chains of the tree (see ChainOrdering), nests the remaining n-ary
+     * operations (see ComputationNode.associativeNesting), merges identical subtrees (see CommonSubexpressions),
+     * fuses its element-wise chains (see FusionPass) and orders its operation nodes so that every node comes after all of its children.
+     * Apart from the chain ordering, which is bounded by ChainOrdering.MAX_CHAIN_LENGTH, runs in O(n).
+     */
+    public static ExecutionPlan compile(ComputationNode root) {
+        ChainOrdering.Report chainOrdering = ChainOrdering.apply(root);
+        root.associativeNesting();
+        CommonSubexpressions.apply(root);
+        FusionPass.apply(root);
+        List<Step> steps = new ArrayList<>();
+        Map<ComputationNode, Step> stepOf = new IdentityHashMap<>();
+        for (ComputationNode node : ComputationNode.postOrder(root)) {
+            if (node.getNodeType() == ComputationNodeType.MATRIX) {
+                continue;
+            }
+            Step step = new Step(steps.size(), node);
+            for (ComputationNode child : node.getChildren()) {
+                Step childStep = stepOf.get(child);
+                if (childStep != null && !step.dependencies.contains(childStep.slot)) { // a shared child counts once
+                    step.dependencies.add(childStep.slot);
+                    childStep.consumers.add(step.slot);
+                }
+            }
+            steps.add(step);
+            stepOf.put(node, step);
+        }
+        propagateLayouts(steps, stepOf);
+        return new ExecutionPlan(Collections.unmodifiableList(steps), chainOrdering);
+    }
+
+    // every consumer comes after its operands, so walking the steps backwards decides the layout of a consumer
+    // before its operands are asked for theirs. A transpose is read in the opposite layout of its own result,
+    // since the engine computes it by flipping its operand
+    private static void propagateLayouts(List<Step> steps, Map<ComputationNode, Step> stepOf) {
+        Set<Step> conflicts = Collections.newSetFromMap(new IdentityHashMap<>()); // steps whose consumers need different layouts
+        for (int slot = steps.size() - 1; slot >= 0; slot--) {
+            Step step = steps.get(slot);
+            ComputationNode node = step.node;
+            List<ComputationNode> children = node.getChildren();
+            switch (node.getNodeType()) {
+                case MULTIPLY:
+                    require(stepOf.get(children.get(0)), VectorOrientation.ROW_MAJOR, conflicts);
+                    require(stepOf.get(children.get(1)), VectorOrientation.COLUMN_MAJOR, conflicts);
+                    break;
+                case FUSED:
+                    FusedExpression expression = node.getFusedExpression();
+                    if (expression.hasProduct()) {
+                        require(stepOf.get(children.get(expression.getProductLeft())), VectorOrientation.ROW_MAJOR, conflicts);
+                        require(stepOf.get(children.get(expression.getProductRight())), VectorOrientation.COLUMN_MAJOR, conflicts);
+                    }
+                    break;
+                case TRANSPOSE:
+                    if (step.layout != null) {
+                        require(stepOf.get(children.get(0)), step.layout == VectorOrientation.ROW_MAJOR
+                                ? VectorOrientation.COLUMN_MAJOR : VectorOrientation.ROW_MAJOR, conflicts);
+                    }
+                    break;
+                default: // element-wise operations read their operands either way
+                    break;
+            }
+        }
+    }
+
+    private static void require(Step step, VectorOrientation layout, Set<Step> conflicts) {
+        if (step == null || conflicts.contains(step)) {
+            return; // a leaf, or a step that already can't satisfy all of its consumers
+        }
+        if (step.layout == null) {
+            step.layout = layout;
+        } else if (step.layout != layout) {
+            step.layout = null;
+            conflicts.add(step);
+        }
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public Step get(int slot) {
+        return steps.get(slot);
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    public ChainOrdering.Report getChainOrdering() {
+        return chainOrdering;
+    }
+}
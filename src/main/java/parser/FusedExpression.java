@@ -0,0 +1,71 @@
+package parser;
+
+import java.util.List;
+
+/**
+ * The operation of a FUSED node: the sum of its terms, each one a child of the node that may be negated
+ * and/or transposed, plus optionally the product of two other children (which may be negated as well).
+ * For example -(A + B^T) + C * D has the terms -A, -B^T and the product +C * D.
+ */
+public class FusedExpression {
+
+    public static class Term {
+        private final int child; // index in the children of the FUSED node
+        private final boolean negated;
+        private final boolean transposed;
+
+        public Term(int child, boolean negated, boolean transposed) {
+            this.child = child;
+            this.negated = negated;
+            this.transposed = transposed;
+        }
+
+        public int getChild() {
+            return child;
+        }
+
+        public boolean isNegated() {
+            return negated;
+        }
+
+        public boolean isTransposed() {
+            return transposed;
+        }
+    }
+
+    private final List<Term> terms;
+    private final int productLeft; // index of the left factor of the product in the children, -1 if there is no product
+    private final int productRight;
+    private final boolean productNegated;
+
+    public FusedExpression(List<Term> terms) {
+        this(terms, -1, -1, false);
+    }
+
+    public FusedExpression(List<Term> terms, int productLeft, int productRight, boolean productNegated) {
+        this.terms = terms;
+        this.productLeft = productLeft;
+        this.productRight = productRight;
+        this.productNegated = productNegated;
+    }
+
+    public List<Term> getTerms() {
+        return terms;
+    }
+
+    public boolean hasProduct() {
+        return productLeft >= 0;
+    }
+
+    public int getProductLeft() {
+        return productLeft;
+    }
+
+    public int getProductRight() {
+        return productRight;
+    }
+
+    public boolean isProductNegated() {
+        return productNegated;
+    }
+}
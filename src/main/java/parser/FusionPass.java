@@ -0,0 +1,167 @@
+package parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites chains of element-wise operations into single FUSED nodes.
+ * A maximal subtree of ADD, NEGATE and TRANSPOSE nodes is a signed sum of (possibly transposed) operands,
+ * since negation and transposition distribute over addition, e.g. -(A + B)^T = -A^T - B^T.
+ * Such a subtree is computed in one pass over memory instead of one pass (and one intermediate) per node.
+ * If one of the operands is a product that isn't transposed, its factors become part of the FUSED node too,
+ * so the product is accumulated straight into the sum.
+ * Nodes shared by several parents (see CommonSubexpressions) are never fused into a parent, they stay
+ * operands so they are still computed once.
+ * Sparse operands (see sparseNodes) are never fused either, since a FUSED node is computed on dense storage:
+ * a chain with a sparse term is left as binary nodes that the engine computes with its sparse kernels.
+ */
+public class FusionPass {
+
+    private FusionPass() {}
+
+    // an operand of an element-wise chain, with the negations and transposes applied to it on the way
+    private static class Frame {
+        private final ComputationNode node;
+        private final boolean negated;
+        private final boolean transposed;
+
+        private Frame(ComputationNode node, boolean negated, boolean transposed) {
+            this.node = node;
+            this.negated = negated;
+            this.transposed = transposed;
+        }
+    }
+
+    /**
+     * Fuses every element-wise chain of the tree in place. The operations must already be binary
+     * (see ComputationNode.associativeNesting). Chains that are a single term without a sum,
+     * like a lone transpose, are left alone because they don't produce any intermediate.
+     */
+    public static void apply(ComputationNode root) {
+        Map<ComputationNode, Integer> references = new IdentityHashMap<>();
+        for (ComputationNode node : ComputationNode.postOrder(root)) {
+            if (node.getChildren() != null) {
+                for (ComputationNode child : node.getChildren()) {
+                    references.merge(child, 1, Integer::sum);
+                }
+            }
+        }
+        Set<ComputationNode> sparse = sparseNodes(root);
+        Deque<ComputationNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            ComputationNode node = pending.pop();
+            List<Frame> terms = isElementwise(node) ? collectTerms(node, references) : null;
+            if (terms == null || hasSparseTerm(terms, sparse)) { // the children may still head chains of their own
+                if (node.getChildren() != null) {
+                    for (ComputationNode child : node.getChildren()) {
+                        pending.push(child);
+                    }
+                }
+                continue;
+            }
+            for (Frame term : terms) {
+                pending.push(term.node);
+            }
+            if (terms.size() > 1) {
+                fuse(node, terms, references, sparse);
+            }
+        }
+    }
+
+    // the nodes whose value is expected to be sparse: sparse leaves, and the operations that the engine
+    // computes into a sparse result when all of their operands are sparse
+    static Set<ComputationNode> sparseNodes(ComputationNode root) {
+        Set<ComputationNode> sparse = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ComputationNode node : ComputationNode.postOrder(root)) {
+            if (node.getNodeType() == ComputationNodeType.MATRIX) {
+                if (node.getSparseMatrix() != null) {
+                    sparse.add(node);
+                }
+            } else if (node.getNodeType() != ComputationNodeType.FUSED && sparse.containsAll(node.getChildren())) {
+                sparse.add(node);
+            }
+        }
+        return sparse;
+    }
+
+    private static boolean hasSparseTerm(List<Frame> terms, Set<ComputationNode> sparse) {
+        for (Frame term : terms) {
+            if (sparse.contains(term.node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isElementwise(ComputationNode node) {
+        ComputationNodeType type = node.getNodeType();
+        return type == ComputationNodeType.ADD || type == ComputationNodeType.NEGATE || type == ComputationNodeType.TRANSPOSE;
+    }
+
+    private static boolean isShared(ComputationNode node, Map<ComputationNode, Integer> references) {
+        return references.getOrDefault(node, 0) > 1;
+    }
+
+    // walks the element-wise chain below node and returns its operands from left to right
+    private static List<Frame> collectTerms(ComputationNode node, Map<ComputationNode, Integer> references) {
+        List<Frame> terms = new ArrayList<>();
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(node, false, false));
+        while (!stack.isEmpty()) {
+            Frame frame = stack.pop();
+            ComputationNode current = frame.node;
+            if (current != node && isShared(current, references)) {
+                terms.add(frame);
+                continue;
+            }
+            switch (current.getNodeType()) {
+                case NEGATE:
+                    stack.push(new Frame(current.getChildren().get(0), !frame.negated, frame.transposed));
+                    break;
+                case TRANSPOSE:
+                    stack.push(new Frame(current.getChildren().get(0), frame.negated, !frame.transposed));
+                    break;
+                case ADD:
+                    List<ComputationNode> children = current.getChildren();
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(new Frame(children.get(i), frame.negated, frame.transposed));
+                    }
+                    break;
+                default:
+                    terms.add(frame);
+            }
+        }
+        return terms;
+    }
+
+    private static void fuse(ComputationNode node, List<Frame> terms, Map<ComputationNode, Integer> references,
+                             Set<ComputationNode> sparse) {
+        List<ComputationNode> children = new ArrayList<>();
+        List<FusedExpression.Term> fusedTerms = new ArrayList<>();
+        int productLeft = -1, productRight = -1;
+        boolean productNegated = false;
+        for (Frame term : terms) {
+            ComputationNode operand = term.node;
+            boolean binaryProduct = operand.getNodeType() == ComputationNodeType.MULTIPLY && operand.getChildren().size() == 2
+                    && Collections.disjoint(sparse, operand.getChildren()); // a sparse factor keeps its own product
+            if (productLeft < 0 && binaryProduct && !term.transposed && !isShared(operand, references)) {
+                productLeft = children.size();
+                children.add(operand.getChildren().get(0));
+                productRight = children.size();
+                children.add(operand.getChildren().get(1));
+                productNegated = term.negated;
+            } else {
+                fusedTerms.add(new FusedExpression.Term(children.size(), term.negated, term.transposed));
+                children.add(operand);
+            }
+        }
+        node.fuse(new FusedExpression(fusedTerms, productLeft, productRight, productNegated), children);
+    }
+}
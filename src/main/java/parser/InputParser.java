@@ -1,68 +1,237 @@
 package parser;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import memory.SparseMatrix;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.*;
 
+// the input is read token by token, the numbers of a matrix go straight into its double[] rows
+// without building a JsonNode tree of the document first.
+// a matrix can also be stored in a binary file (see MatrixFile) and referenced as {"file": "<path>"},
+// relative paths are resolved against the directory of the input file.
+// a matrix with fewer than sparseDensity * rows * cols non-zeros becomes a sparse leaf (see SparseMatrix).
+// That is off unless setSparseDensity turns it on, since the results of sparse kernels can differ from the dense
+// ones in the implicit zeros (see SparseKernel)
 public class InputParser {
 
+    public static final double DEFAULT_SPARSE_DENSITY = 0;
+
     private final ObjectMapper mapper = new ObjectMapper();
+    private double sparseDensity = DEFAULT_SPARSE_DENSITY;
+
+    // matrices parsed so far by content hash, so a matrix that appears several times is stored once
+    private final Map<Integer, List<double[][]>> parsedMatrices = new HashMap<>();
+    private final Map<SparseMatrix, SparseMatrix> parsedSparseMatrices = new HashMap<>();
+    // leaves read from matrix files by absolute path, a file referenced several times is read once
+    private final Map<Path, ComputationNode> fileMatrices = new HashMap<>();
+    private Path baseDirectory;
+    private Path inputFile;
+
+    /**
+     * Matrices whose fraction of non-zeros is below density are parsed into sparse leaves, 0 (the default) keeps
+     * every matrix dense.
+     */
+    public void setSparseDensity(double density) {
+        sparseDensity = density;
+    }
 
     public ComputationNode parse(String inputPath) throws ParseException {
-        try {
-            File inputFile = new File(inputPath);
-            JsonNode rootJsonNode = mapper.readTree(inputFile);
-            ComputationNode root = parseJsonNode(rootJsonNode);
+        parsedMatrices.clear();
+        parsedSparseMatrices.clear();
+        fileMatrices.clear();
+        inputFile = Path.of(inputPath).toAbsolutePath();
+        baseDirectory = inputFile.getParent();
+        try (JsonParser parser = mapper.getFactory().createParser(new File(inputPath))) {
+            if (parser.nextToken() == null) {
+                throw new ParseException("Invalid node structure: ", 0); // an empty document reads as a missing node
+            }
+            ComputationNode root = parseValue(parser);
             return root;
         } catch (IOException e) {
             throw new ParseException("Failed to read the input JSON file: " + e.getMessage(), 0);
         }
     }
 
-    private ComputationNode parseJsonNode(JsonNode jsonNode) throws ParseException {
-        if (jsonNode.has("operator") && jsonNode.has("operands")) {
-            String operatorStr = jsonNode.get("operator").asText();
-            ArrayNode operandJsonNodes = (ArrayNode) jsonNode.get("operands");
-            List<ComputationNode> operands = new ArrayList<>();
-            for (int i = 0; i < operandJsonNodes.size(); i++) {
-                operands.add(parseJsonNode(operandJsonNodes.get(i)));
-            }
-            return new ComputationNode(operatorStr, operands);
+    // parses the value that starts at the current token, and leaves the parser on its last token
+    private ComputationNode parseValue(JsonParser parser) throws IOException, ParseException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            return parseOperation(parser);
+        }
+        else if (token == JsonToken.START_ARRAY) {
+            return parseMatrix(parser);
         }
-        else if (jsonNode.isArray()) {
-            if (jsonNode.size() == 0) {
-                throw new ParseException("Empty array cannot be parsed as DataNode.", 0);
+        else { throw new ParseException("Invalid node structure: " + describe(parser), 0); }
+    }
+
+    private ComputationNode parseOperation(JsonParser parser) throws IOException, ParseException {
+        String operatorStr = null;
+        List<ComputationNode> operands = null;
+        String file = null;
+        ObjectNode otherFields = mapper.createObjectNode(); // only kept for the error message
+        long operandsStart = -1, operandsEnd = -1; // the bytes of the operands in the input, for the error message
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("operator")) {
+                JsonNode operatorJsonNode = mapper.readTree(parser);
+                operatorStr = operatorJsonNode.asText();
+                otherFields.set(field, operatorJsonNode);
+            }
+            else if (field.equals("file") && parser.currentToken() == JsonToken.VALUE_STRING) {
+                file = parser.getText();
+                otherFields.put(field, file);
             }
-            // Check if it's a vector (1D array)
-            if (jsonNode.get(0).isNumber()) {
-                throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", 0);
+            else if (field.equals("operands") && parser.currentToken() == JsonToken.START_ARRAY) {
+                operandsStart = parser.currentTokenLocation().getByteOffset();
+                otherFields.putNull(field); // keeps the position of the field, filled in if there is an error
+                operands = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    operands.add(parseValue(parser));
+                }
+                operandsEnd = parser.currentTokenLocation().getByteOffset() + 1;
             }
-            // Otherwise, it's a matrix (2D array)
             else {
-                double[][] matrix = new double[jsonNode.size()][];
-                int width = jsonNode.get(0).size();
-                for (int i = 0; i < jsonNode.size(); i++) {
-                    JsonNode rowJsonNode = jsonNode.get(i);
-                    if (rowJsonNode.size() != width) {
-                        throw new ParseException("Inconsistent row sizes in matrix.", 0);
-                    }
-                    if (!rowJsonNode.isArray()) {
-                        throw new ParseException("Invalid matrix row: " + rowJsonNode.toString(), 0);
+                otherFields.set(field, mapper.readTree(parser));
+            }
+        }
+        if (file != null && operatorStr == null && operands == null) {
+            return readMatrixFile(file);
+        }
+        if (operatorStr == null || operands == null) {
+            if (operands != null) {
+                otherFields.set("operands", readSource(operandsStart, operandsEnd));
+            }
+            throw new ParseException("Invalid node structure: " + otherFields.toString(), 0);
+        }
+        return new ComputationNode(operatorStr, operands);
+    }
+
+    private ComputationNode readMatrixFile(String file) throws ParseException {
+        Path path = baseDirectory.resolve(file).toAbsolutePath().normalize();
+        ComputationNode leaf = fileMatrices.get(path);
+        if (leaf == null) {
+            try {
+                leaf = MatrixFile.read(path);
+            } catch (IOException e) {
+                throw new ParseException("Failed to read the matrix file " + file + ": " + e.getMessage(), 0);
+            }
+            if (isSparse(leaf.getStoredMatrix())) {
+                leaf = new ComputationNode(SparseMatrix.fromDense(leaf.getStoredMatrix()), leaf.isTransposed());
+            }
+            fileMatrices.put(path, leaf);
+        }
+        return leaf;
+    }
+
+    private ComputationNode parseMatrix(JsonParser parser) throws IOException, ParseException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            throw new ParseException("Empty array cannot be parsed as DataNode.", 0);
+        }
+        // Check if it's a vector (1D array)
+        if (token.isNumeric()) {
+            throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", 0);
+        }
+        // Otherwise, it's a matrix (2D array)
+        List<double[]> rows = new ArrayList<>();
+        double[] firstRow = new double[16];
+        int width = -1;
+        while (token != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_ARRAY) {
+                if (width > 0) {
+                    throw new ParseException("Inconsistent row sizes in matrix.", 0);
+                }
+                throw new ParseException("Invalid matrix row: " + describe(parser), 0);
+            }
+            if (width < 0) { // the first row decides the width, it is read into a growing buffer
+                int size = 0;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (size == firstRow.length) {
+                        firstRow = Arrays.copyOf(firstRow, size * 2);
                     }
-                    matrix[i] = new double[rowJsonNode.size()];
-                    for (int j = 0; j < rowJsonNode.size(); j++) {
-                        matrix[i][j] = rowJsonNode.get(j).asDouble();
+                    firstRow[size++] = readNumber(parser);
+                }
+                width = size;
+                rows.add(Arrays.copyOf(firstRow, width));
+            } else {
+                double[] row = new double[width];
+                int size = 0;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (size == width) {
+                        throw new ParseException("Inconsistent row sizes in matrix.", 0);
                     }
+                    row[size++] = readNumber(parser);
+                }
+                if (size != width) {
+                    throw new ParseException("Inconsistent row sizes in matrix.", 0);
+                }
+                rows.add(row);
+            }
+            token = parser.nextToken();
+        }
+        double[][] matrix = rows.toArray(new double[0][]);
+        if (isSparse(matrix)) {
+            SparseMatrix sparse = SparseMatrix.fromDense(matrix);
+            return new ComputationNode(parsedSparseMatrices.computeIfAbsent(sparse, s -> s), false);
+        }
+        return new ComputationNode(deduplicate(matrix));
+    }
+
+    private boolean isSparse(double[][] matrix) {
+        return SparseMatrix.countNonZeros(matrix) < sparseDensity * matrix.length * matrix[0].length;
+    }
+
+    // reads the current element of a row as a double, the way JsonNode.asDouble did (0 for non numbers)
+    private double readNumber(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return 0;
+        }
+        return parser.getValueAsDouble(0);
+    }
+
+    // the bytes [start, end) of the input file as a JsonNode. Only used for error messages, so the operands of
+    // an invalid operation aren't kept as a tree while they are parsed
+    private JsonNode readSource(long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, start + bytes.position()) < 0) {
+                    break;
                 }
-                return new ComputationNode(matrix);
+            }
+            return mapper.readTree(bytes.array());
+        }
+    }
+
+    // the current value as JSON text, for error messages
+    private String describe(JsonParser parser) throws IOException {
+        return mapper.readTree(parser).toString();
+    }
+
+    // returns an already parsed matrix with the same content as matrix if there is one, otherwise matrix itself
+    private double[][] deduplicate(double[][] matrix) {
+        List<double[][]> sameHash = parsedMatrices.computeIfAbsent(Arrays.deepHashCode(matrix), hash -> new ArrayList<>());
+        for (double[][] parsed : sameHash) {
+            if (Arrays.deepEquals(parsed, matrix)) {
+                return parsed;
             }
         }
-        else { throw new ParseException("Invalid node structure: " + jsonNode.toString(), 0); }
+        sameHash.add(matrix);
+        return matrix;
     }
 
-}
\ No newline at end of file
+}
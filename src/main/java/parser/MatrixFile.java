@@ -0,0 +1,112 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A binary matrix file: a 32 byte header followed by the raw little-endian doubles of the matrix.
+ * The header holds, as little-endian ints: the magic "LAEM", the format version, the element type
+ * (DTYPE_FLOAT64), the layout (LAYOUT_ROW_MAJOR or LAYOUT_COLUMN_MAJOR), the rows and the columns.
+ * Files are read and written through FileChannel.map, in windows of whole rows of at most MAX_WINDOW bytes.
+ */
+public class MatrixFile {
+
+    public static final int MAGIC = 0x4D45414C; // "LAEM" in little-endian
+    public static final int VERSION = 1;
+    public static final int DTYPE_FLOAT64 = 1;
+    public static final int LAYOUT_ROW_MAJOR = 0;
+    public static final int LAYOUT_COLUMN_MAJOR = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private static final long MAX_WINDOW = 1L << 30;
+
+    private MatrixFile() {}
+
+    /**
+     * Reads a matrix file into a leaf node. A column-major file is read as the rows of the transpose,
+     * so the node holds its matrix transposed (see ComputationNode.isTransposed) and nothing is reordered.
+     */
+    public static ComputationNode read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a matrix file: " + path);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a matrix file: " + path);
+            }
+            if (header.getInt(4) != VERSION || header.getInt(8) != DTYPE_FLOAT64) {
+                throw new IOException("Unsupported matrix file version or element type: " + path);
+            }
+            int layout = header.getInt(12);
+            int rows = header.getInt(16);
+            int cols = header.getInt(20);
+            if (rows <= 0 || cols <= 0 || (layout != LAYOUT_ROW_MAJOR && layout != LAYOUT_COLUMN_MAJOR)) {
+                throw new IOException("Invalid matrix file header: " + path);
+            }
+            if (channel.size() != HEADER_SIZE + (long) rows * cols * Double.BYTES) {
+                throw new IOException("Matrix file size doesn't match its header: " + path);
+            }
+            boolean columnMajor = layout == LAYOUT_COLUMN_MAJOR;
+            int vectors = columnMajor ? cols : rows;
+            int length = columnMajor ? rows : cols;
+            double[][] stored = new double[vectors][length];
+            long vectorBytes = (long) length * Double.BYTES;
+            int perWindow = (int) Math.max(1, MAX_WINDOW / vectorBytes);
+            for (int first = 0; first < vectors; first += perWindow) {
+                int count = Math.min(perWindow, vectors - first);
+                DoubleBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * vectorBytes, count * vectorBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                for (int i = 0; i < count; i++) {
+                    window.get(stored[first + i]);
+                }
+            }
+            return new ComputationNode(stored, columnMajor);
+        }
+    }
+
+    /**
+     * Writes matrix to path in row-major layout, replacing the file if it exists.
+     * @throws IllegalArgumentException if matrix has no rows or no columns, or rows of different lengths,
+     * since the format can't hold them. The file is left untouched then
+     */
+    public static void write(double[][] matrix, Path path) throws IOException {
+        int rows = matrix.length;
+        int cols = rows == 0 ? 0 : matrix[0].length;
+        if (rows == 0 || cols == 0) {
+            throw new IllegalArgumentException("Can't write a " + rows + "x" + cols + " matrix to a matrix file.");
+        }
+        for (double[] row : matrix) {
+            if (row.length != cols) {
+                throw new IllegalArgumentException("Inconsistent row sizes in matrix.");
+            }
+        }
+        long rowBytes = (long) cols * Double.BYTES;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, DTYPE_FLOAT64);
+            header.putInt(12, LAYOUT_ROW_MAJOR);
+            header.putInt(16, rows);
+            header.putInt(20, cols);
+            int perWindow = (int) Math.max(1, MAX_WINDOW / rowBytes);
+            for (int first = 0; first < rows; first += perWindow) {
+                int count = Math.min(perWindow, rows - first);
+                DoubleBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + first * rowBytes, count * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                for (int i = 0; i < count; i++) {
+                    window.put(matrix[first + i]);
+                }
+            }
+        }
+    }
+}
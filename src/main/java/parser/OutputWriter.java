@@ -1,34 +1,61 @@
 package parser;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+// results are streamed row by row through a JsonGenerator instead of being serialized as one object,
+// and can be written compact (no indentation), which is several times smaller for big matrices
 public class OutputWriter {
 
-    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
-
-    public static class ResultMatrix {
-        public double[][] result;
-        public ResultMatrix(double[][] result) { this.result = result; }
-    }
-
-    public static class ErrorMessage {
-        public String error;
-        public ErrorMessage(String error) { this.error = error; }
-    }
+    private static final JsonFactory factory = new JsonFactory();
+    private static final int BUFFER_SIZE = 1 << 16;
 
     public OutputWriter() {}
 
     public static void write(double[][] matrix, String filePath) throws IOException {
-        File file = new File(filePath);
-        mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ResultMatrix(matrix));
+        write(matrix, filePath, false);
+    }
+
+    public static void write(double[][] matrix, String filePath, boolean compact) throws IOException {
+        try (JsonGenerator generator = open(filePath, compact)) {
+            generator.writeStartObject();
+            generator.writeFieldName("result");
+            generator.writeStartArray();
+            for (double[] row : matrix) {
+                generator.writeArray(row, 0, row.length);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
     }
 
     public static void write(String error, String filePath) throws IOException {
-        File file = new File(filePath);
-        mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ErrorMessage(error));
+        try (JsonGenerator generator = open(filePath, false)) {
+            generator.writeStartObject();
+            generator.writeStringField("error", error);
+            generator.writeEndObject();
+        }
+    }
+
+    // a generator writing to a buffered stream over a file channel, indented unless compact
+    private static JsonGenerator open(String filePath, boolean compact) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(filePath),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        JsonGenerator generator = factory.createGenerator(out);
+        if (!compact) {
+            generator.setPrettyPrinter(new DefaultPrettyPrinter());
+        }
+        return generator;
     }
 
 }
@@ -0,0 +1,22 @@
+package scheduling;
+
+/**
+ * How a TiredExecutor hands tasks to its workers.
+ */
+public enum SchedulingMode {
+    /**
+     * Every task is handed to the least tired idle worker, submit blocks until a worker is idle.
+     */
+    HANDOFF,
+    /**
+     * Every worker has its own deque of tasks and idle workers steal from the others.
+     * A task is queued at the worker with the fewest queued tasks (the least tired one on ties), submit never blocks.
+     */
+    WORK_STEALING,
+    /**
+     * Like WORK_STEALING, but a batch is split up front into one contiguous chunk per worker, sized by the
+     * throughput each worker has shown so far (tasks per ns of time used), so faster workers get more tasks.
+     * Stealing then rebalances whatever the estimate got wrong.
+     */
+    PROPORTIONAL
+}
@@ -0,0 +1,172 @@
+package scheduling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A batch whose SpeculativeTasks are run a second time when they take much longer than the others.
+ * Once half of the tasks are done, the batch is checked periodically on the timer: a speculative task that has
+ * been running for more than slowFactor times the median duration is submitted again, and whichever attempt
+ * finishes first commits. The second attempt is only submitted if it can start without waiting (see
+ * TiredExecutor.trySubmit), otherwise the timer would be stuck until a worker is free; the next check tries again. The batch completes like a TaskExecutor batch, with the first exception if any.
+ */
+final class SpeculativeBatch {
+
+    private static final long MIN_CHECK_INTERVAL_NS = 50_000;
+
+    private final TiredExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final double slowFactor;
+    private final AtomicLong launched; // the duplicates started, counted for the whole executor
+    private final AtomicLong won; // the duplicates that finished first
+
+    private final Entry[] entries;
+    private final long[] durations; // of the finished tasks, the first finishedCount are set
+    private int finishedCount = 0;
+    private boolean checking = false;
+    private final AtomicInteger remaining;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private static final class Entry {
+        private final Runnable task;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private final AtomicBoolean duplicated = new AtomicBoolean(false);
+        private volatile long startTime = 0; // of the first attempt, 0 until it starts
+
+        private Entry(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    SpeculativeBatch(TiredExecutor executor, ScheduledExecutorService timer, double slowFactor,
+                     List<Runnable> tasks, AtomicLong launched, AtomicLong won) {
+        this.executor = executor;
+        this.timer = timer;
+        this.slowFactor = slowFactor;
+        this.launched = launched;
+        this.won = won;
+        this.entries = new Entry[tasks.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(tasks.get(i));
+        }
+        this.durations = new long[entries.length];
+        this.remaining = new AtomicInteger(entries.length);
+    }
+
+    CompletableFuture<Void> submit() {
+        if (entries.length == 0) {
+            done.complete(null);
+            return done;
+        }
+        List<Runnable> attempts = new ArrayList<>(entries.length);
+        for (Entry entry : entries) {
+            attempts.add(() -> run(entry, false));
+        }
+        executor.submitBatch(attempts);
+        return done;
+    }
+
+    private void run(Entry entry, boolean duplicate) {
+        if (entry.finished.get()) {
+            return; // the other attempt already won
+        }
+        long start = System.nanoTime();
+        if (!duplicate) {
+            entry.startTime = start;
+        }
+        Throwable error = null;
+        Runnable commit = null;
+        try {
+            commit = entry.task instanceof SpeculativeTask speculative ? speculative.attempt() : null;
+            if (commit == null) {
+                entry.task.run();
+            }
+        } catch (Throwable t) {
+            error = t;
+        }
+        if (!entry.finished.compareAndSet(false, true)) {
+            return; // lost the race, the result of this attempt is dropped
+        }
+        if (duplicate) {
+            won.incrementAndGet();
+        }
+        if (commit != null && error == null) {
+            try {
+                commit.run();
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+        finish(System.nanoTime() - start, error);
+    }
+
+    private void finish(long duration, Throwable error) {
+        if (error != null && !failure.compareAndSet(null, error)) {
+            failure.get().addSuppressed(error);
+        }
+        boolean startChecking = false;
+        synchronized (this) {
+            durations[finishedCount++] = duration;
+            if (!checking && finishedCount * 2 >= entries.length && finishedCount < entries.length) {
+                checking = true;
+                startChecking = true;
+            }
+        }
+        if (remaining.decrementAndGet() == 0) {
+            if (failure.get() == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failure.get());
+            }
+        } else if (startChecking) {
+            scheduleCheck();
+        }
+    }
+
+    private synchronized long median() {
+        long[] finished = Arrays.copyOf(durations, finishedCount);
+        Arrays.sort(finished);
+        return finished[finished.length / 2];
+    }
+
+    private void scheduleCheck() {
+        long interval = Math.max(MIN_CHECK_INTERVAL_NS, median() / 2);
+        try {
+            timer.schedule(this::check, interval, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the executor is shutting down, the batch just runs without speculation
+        }
+    }
+
+    // submits a second attempt of every speculative task that runs for too long, as long as there's a worker to
+    // take it, then checks again later
+    private void check() {
+        if (done.isDone()) {
+            return;
+        }
+        long threshold = (long) (median() * slowFactor);
+        long now = System.nanoTime();
+        for (Entry entry : entries) {
+            long start = entry.startTime;
+            if (entry.task instanceof SpeculativeTask && start != 0 && now - start > threshold
+                    && !entry.finished.get() && entry.duplicated.compareAndSet(false, true)) {
+                if (!executor.trySubmit(() -> run(entry, true))) {
+                    entry.duplicated.set(false); // no worker is idle, the next check tries again
+                    break;
+                }
+                launched.incrementAndGet();
+            }
+        }
+        scheduleCheck();
+    }
+}
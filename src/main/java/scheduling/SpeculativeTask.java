@@ -0,0 +1,16 @@
+package scheduling;
+
+/**
+ * A task that can be run more than once at the same time, e.g. to re-run a straggler on another worker.
+ * Every attempt computes into storage of its own and returns the action that publishes its result;
+ * only the commit of the first attempt that finishes is run, the other results are dropped.
+ */
+public interface SpeculativeTask extends Runnable {
+
+    Runnable attempt();
+
+    @Override
+    default void run() {
+        attempt().run();
+    }
+}
@@ -0,0 +1,101 @@
+package scheduling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the tasks of the engine. Implementations only have to run single tasks, batches are built on submit.
+ */
+public interface TaskExecutor {
+
+    void submit(Runnable task);
+
+    /**
+     * Submits tasks as one batch and waits until all of them are done.
+     * A task that throws doesn't stop the batch, its exception is only reported to the uncaught exception handler.
+     */
+    default void submitAll(Iterable<Runnable> tasks) {
+        try {
+            submitAllAsync(tasks).join();
+        } catch (CompletionException e) {
+            Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e.getCause());
+        }
+    }
+
+    /**
+     * Submits tasks as one batch and returns a future that completes when all of them are done, or completes
+     * exceptionally with the first exception a task threw (later ones are added to it as suppressed).
+     * Every batch is tracked on its own, so any number of batches can run at the same time.
+     * This returns once every task is submitted, so it blocks as long as submit does.
+     * The future is completed on the thread that ran the last task, so dependent actions that aren't short
+     * should use the async variants of CompletableFuture.
+     */
+    default CompletableFuture<Void> submitAllAsync(Iterable<Runnable> tasks) {
+        List<Runnable> batch = new ArrayList<>();
+        tasks.forEach(batch::add);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (batch.isEmpty()) {
+            done.complete(null);
+            return done;
+        }
+        AtomicInteger remaining = new AtomicInteger(batch.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Runnable> wrappedTasks = new ArrayList<>(batch.size());
+        for (Runnable task : batch) {
+            wrappedTasks.add(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    if (!failure.compareAndSet(null, t)) {
+                        failure.get().addSuppressed(t);
+                    }
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        if (failure.get() == null) {
+                            done.complete(null);
+                        } else {
+                            done.completeExceptionally(failure.get());
+                        }
+                    }
+                }
+            });
+        }
+        submitBatch(wrappedTasks);
+        return done;
+    }
+
+    /**
+     * Submits the tasks of one batch, by default one at a time through submit.
+     * An implementation can override this to place the batch as a whole.
+     */
+    default void submitBatch(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            submit(task);
+        }
+    }
+
+    /**
+     * Makes batches re-run their SpeculativeTasks that take more than slowFactor times the median task of the
+     * batch on another worker, the first attempt to finish wins. 0 turns it off.
+     * Executors that don't run tasks speculatively ignore it, isSpeculative tells whether it's in effect.
+     */
+    default void setSpeculation(double slowFactor) {
+    }
+
+    default boolean isSpeculative() {
+        return false;
+    }
+
+    /**
+     * @return how many tasks can run at the same time
+     */
+    int getWorkerCount();
+
+    void shutdown() throws InterruptedException;
+
+    String getWorkerReport();
+}
@@ -1,80 +1,243 @@
 package scheduling;
 
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class TiredExecutor {
+public class TiredExecutor implements TaskExecutor {
 
     private final TiredThread[] workers;
+    private final SchedulingMode mode;
     private final PriorityBlockingQueue<TiredThread> idleMinHeap = new PriorityBlockingQueue<>();
-    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    // speculation (see setSpeculation): the timer that checks running batches for stragglers, null while off
+    private volatile double slowFactor = 0;
+    private ScheduledExecutorService speculationTimer = null;
+    private final AtomicLong speculativeRuns = new AtomicLong(0);
+    private final AtomicLong speculativeWins = new AtomicLong(0);
 
 
     public TiredExecutor(int numThreads) {
+        this(numThreads, SchedulingMode.HANDOFF);
+    }
+
+    public TiredExecutor(int numThreads, SchedulingMode mode) {
         // TODO
+        this.mode = mode;
         workers = new TiredThread[numThreads];
         for(int i=0;i<numThreads;i++){
             double fatigueFactor = Math.random() + 0.5; // Generating a random value between 0.5 to 1.5 representing the fatigue factor
-            TiredThread thread = new TiredThread(i, fatigueFactor);
+            TiredThread thread = mode == SchedulingMode.HANDOFF ? new TiredThread(i, fatigueFactor) : new TiredThread(i, fatigueFactor, workers);
             workers[i] = thread;
-            idleMinHeap.add(thread); // At first, all of the threads are idle
+            if (mode == SchedulingMode.HANDOFF) {
+                idleMinHeap.add(thread); // At first, all of the threads are idle
+            }
+        }
+        for (TiredThread thread : workers) {
             thread.start();
         }
 
     }
 
+    public SchedulingMode getMode() {
+        return mode;
+    }
+
+    TiredThread getWorker(int index) {
+        return workers[index];
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    @Override
     public void submit(Runnable task) {
         // TODO
+        if (mode != SchedulingMode.HANDOFF) {
+            submitToDeque(task);
+            return;
+        }
         try {
-            inFlight.incrementAndGet();
-            TiredThread threadToSubmit = idleMinHeap.take(); // take will retrieve and remove the head of this queue, waiting if necessary until an element becomes available.
-            // the wrapped task is to make sure that the inFlight and idleMinHeap are updated after the thread finishes the task.
-            // also after the thread finishes the task we want to notify the other threads (in case inFlight=0) because it means that all of the tasks completed
-            Runnable wrappedTask = () -> {
-                long startWorkTime = System.nanoTime();
-                threadToSubmit.addTimeIdle(startWorkTime - threadToSubmit.getIdleStartTime());
-                try{
-                    task.run();
-                }
-                finally{
-                    threadToSubmit.addTimeUsed(System.nanoTime()- startWorkTime);
-                    inFlight.decrementAndGet();
-                    idleMinHeap.add(threadToSubmit);
-                    if(inFlight.get() ==0) {
-                        synchronized (inFlight) {
-                            inFlight.notifyAll();
-                        }
-                    }
-
-                }
-            };
-            threadToSubmit.newTask(wrappedTask);
+            handOff(idleMinHeap.take(), task); // take will retrieve and remove the head of this queue, waiting if necessary until an element becomes available.
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
 
     }
 
-    public void submitAll(Iterable<Runnable> tasks) {
+    /**
+     * Submits the task like submit, but only if it doesn't have to wait for that: in HANDOFF mode only when a worker
+     * is idle. The deque modes never wait, so they always take the task.
+     * @return false if the task wasn't submitted
+     */
+    boolean trySubmit(Runnable task) {
+        if (mode != SchedulingMode.HANDOFF) {
+            submitToDeque(task);
+            return true;
+        }
+        TiredThread idle = idleMinHeap.poll();
+        if (idle == null) {
+            return false;
+        }
+        handOff(idle, task);
+        return true;
+    }
+
+    // gives the task to an idle worker taken out of idleMinHeap
+    private void handOff(TiredThread threadToSubmit, Runnable task) {
+        // the wrapped task is to make sure that the times and idleMinHeap are updated after the thread finishes the task.
+        Runnable wrappedTask = () -> {
+            long startWorkTime = System.nanoTime();
+            threadToSubmit.addTimeIdle(startWorkTime - threadToSubmit.getIdleStartTime());
+            try{
+                task.run();
+            }
+            finally{
+                threadToSubmit.addTimeUsed(System.nanoTime()- startWorkTime);
+                idleMinHeap.add(threadToSubmit);
+            }
+        };
+        threadToSubmit.newTask(wrappedTask);
+    }
+
+    // queues the task at the worker with the fewest queued tasks, the least tired one on ties (so an idle worker is
+    // preferred like in the handoff mode). If that worker is busy, a parked worker is woken to steal the task.
+    // The worker that runs the task keeps the time it took, so the task isn't wrapped.
+    private void submitToDeque(Runnable task) {
+        TiredThread target = workers[0];
+        for (int i = 1; i < workers.length; i++) {
+            TiredThread worker = workers[i];
+            int queued = worker.queued();
+            if (queued < target.queued() || (queued == target.queued() && worker.getFatigue() < target.getFatigue())) {
+                target = worker;
+            }
+        }
+        target.push(task);
+        if (target.isBusy()) {
+            for (TiredThread worker : workers) {
+                if (worker.isParked()) {
+                    worker.wake();
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void setSpeculation(double slowFactor) {
+        if (slowFactor > 0 && speculationTimer == null) {
+            speculationTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "speculation-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.slowFactor = slowFactor;
+    }
+
+    @Override
+    public boolean isSpeculative() {
+        return slowFactor > 0;
+    }
+
+    /**
+     * With speculation on, a batch that has SpeculativeTasks is run as a SpeculativeBatch.
+     */
+    @Override
+    public CompletableFuture<Void> submitAllAsync(Iterable<Runnable> tasks) {
+        double factor = slowFactor;
+        if (factor <= 0) {
+            return TaskExecutor.super.submitAllAsync(tasks);
+        }
+        List<Runnable> batch = new ArrayList<>();
+        boolean speculative = false;
         for (Runnable task : tasks) {
-            submit(task);
-        }
-        synchronized (inFlight) {
-            while (inFlight.get() > 0) { // Checking if there is some busy workers, because we need to wait until all of the tasks are finished
-                try {
-                    inFlight.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+            batch.add(task);
+            speculative |= task instanceof SpeculativeTask;
+        }
+        if (!speculative) {
+            return TaskExecutor.super.submitAllAsync(batch);
+        }
+        return new SpeculativeBatch(this, speculationTimer, factor, batch, speculativeRuns, speculativeWins).submit();
+    }
+
+    /**
+     * In PROPORTIONAL mode the batch is split into one contiguous chunk per worker, sized by the workers' throughput.
+     * Workers that haven't completed a task yet are assumed to be as fast as the average of the others.
+     */
+    @Override
+    public void submitBatch(List<Runnable> tasks) {
+        if (mode != SchedulingMode.PROPORTIONAL) {
+            TaskExecutor.super.submitBatch(tasks);
+            return;
+        }
+        int[] chunks = chunkSizes(tasks.size());
+        int next = 0;
+        for (int w = 0; w < workers.length; w++) {
+            if (chunks[w] > 0) {
+                workers[w].pushAll(tasks, next, next + chunks[w]);
+                next += chunks[w];
+            }
+        }
+    }
+
+    // splits count tasks over the workers in proportion to their throughput (largest remainder rounding)
+    int[] chunkSizes(int count) {
+        double[] rates = new double[workers.length];
+        double knownTotal = 0;
+        int known = 0;
+        for (int w = 0; w < workers.length; w++) {
+            rates[w] = workers[w].getThroughput();
+            if (rates[w] > 0) {
+                knownTotal += rates[w];
+                known++;
+            }
+        }
+        double fallback = known == 0 ? 1 : knownTotal / known;
+        double total = 0;
+        for (int w = 0; w < workers.length; w++) {
+            if (rates[w] <= 0) {
+                rates[w] = fallback;
+            }
+            total += rates[w];
+        }
+        int[] chunks = new int[workers.length];
+        double[] remainders = new double[workers.length];
+        int assigned = 0;
+        for (int w = 0; w < workers.length; w++) {
+            double share = count * rates[w] / total;
+            chunks[w] = (int) share;
+            remainders[w] = share - chunks[w];
+            assigned += chunks[w];
+        }
+        for (; assigned < count; assigned++) {
+            int best = 0;
+            for (int w = 1; w < workers.length; w++) {
+                if (remainders[w] > remainders[best]) {
+                    best = w;
                 }
             }
+            chunks[best]++;
+            remainders[best] = -1;
         }
+        return chunks;
     }
 
+    @Override
     public void shutdown() throws InterruptedException {
         // TODO
+        synchronized (this) {
+            if (speculationTimer != null) {
+                speculationTimer.shutdownNow();
+            }
+        }
         for(TiredThread worker: workers){
             worker.shutdown(); // shutdown the worker
             if (Thread.interrupted())
@@ -82,6 +245,7 @@ public class TiredExecutor {
         }
     }
 
+    @Override
     public synchronized String getWorkerReport() {
         // TODO: return readable statistics for each worker
         StringBuilder reports = new StringBuilder();
@@ -94,10 +258,17 @@ public class TiredExecutor {
                     ":\tFatigue: " + worker.getFatigue() +
                     "\tTime used: " + usedNs + " ns" +
                     "\tTime idle: " + idleNs + " ns";
+            if (mode != SchedulingMode.HANDOFF) {
+                report += "\tTasks stolen: " + worker.getTasksStolen();
+            }
 
             reports.append(report).append("\n");
         }
 
+        if (isSpeculative()) {
+            reports.append("Speculative runs: ").append(speculativeRuns.get())
+                    .append("\tWon: ").append(speculativeWins.get()).append("\n");
+        }
         reports.append("----------------------------------------\n");
         reports.append("Fairness Score (Lower is better): ")
                 .append(String.format("%.4f", getFairnessScore()));
@@ -1,9 +1,13 @@
 package scheduling;
 
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class TiredThread extends Thread implements Comparable<TiredThread> {
 
@@ -17,6 +21,15 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
     // Single-slot handoff queue; executor will put tasks here
     private final BlockingQueue<Runnable> handoff = new ArrayBlockingQueue<>(1);
 
+    // work-stealing mode (peers != null): the worker runs the tasks of its own deque from the head,
+    // and when it is empty it steals from the tail of its peers' deques
+    private final TiredThread[] peers;
+    private final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger queued = new AtomicInteger(0); // ConcurrentLinkedDeque.size() isn't constant time
+    private final AtomicLong tasksStolen = new AtomicLong(0);
+    private final AtomicLong tasksDone = new AtomicLong(0);
+    private volatile boolean parked = false;
+
     private final AtomicBoolean busy = new AtomicBoolean(false); // Indicates if the worker is currently executing a task
 
     private final AtomicLong timeUsed = new AtomicLong(0); // Total time spent executing tasks
@@ -24,8 +37,17 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
     private final AtomicLong idleStartTime = new AtomicLong(0); // Timestamp when the worker became idle
 
     public TiredThread(int id, double fatigueFactor) {
+        this(id, fatigueFactor, null);
+    }
+
+    /**
+     * Creates a worker in work-stealing mode that steals from peers (which may include itself).
+     * Tasks are given with push instead of newTask, and the worker keeps its time used and idle itself.
+     */
+    TiredThread(int id, double fatigueFactor, TiredThread[] peers) {
         this.id = id;
         this.fatigueFactor = fatigueFactor;
+        this.peers = peers;
         this.idleStartTime.set(System.nanoTime());
         setName(String.format("FF=%.2f", fatigueFactor));
     }
@@ -55,6 +77,58 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         return timeIdle.get();
     }
 
+    /**
+     * @return the number of tasks this worker took from other workers' deques (work-stealing mode)
+     */
+    public long getTasksStolen() {
+        return tasksStolen.get();
+    }
+
+    public long getTasksDone() {
+        return tasksDone.get();
+    }
+
+    /**
+     * @return the tasks this worker completed per ns of time used, 0 before it has completed any
+     */
+    public double getThroughput() {
+        long used = timeUsed.get();
+        return used == 0 ? 0 : (double) tasksDone.get() / used;
+    }
+
+    // the number of tasks waiting in the deque of this worker (work-stealing mode)
+    int queued() {
+        return queued.get();
+    }
+
+    boolean isParked() {
+        return parked;
+    }
+
+    /**
+     * Queues a task at the tail of this worker's deque (work-stealing mode) and wakes the worker if it is parked.
+     */
+    void push(Runnable task) {
+        queued.incrementAndGet();
+        deque.addLast(task);
+        wake();
+    }
+
+    /**
+     * Queues tasks [from, to) at the tail of this worker's deque and wakes the worker once.
+     */
+    void pushAll(List<Runnable> tasks, int from, int to) {
+        queued.addAndGet(to - from);
+        deque.addAll(tasks.subList(from, to));
+        wake();
+    }
+
+    void wake() {
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+    }
+
     /**
      * Assign a task to this worker.
      * This method is non-blocking: if the worker is not ready to accept a task,
@@ -75,11 +149,16 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         // TODO
         alive.set(false);
         handoff.offer(POISON_PILL);
+        LockSupport.unpark(this);
     }
 
     @Override
     public void run() {
         // TODO
+        if (peers != null) {
+            runStealing();
+            return;
+        }
         while (alive.get()) { //loops while the thread hasn't been shut down(alive is true)
             try {
                 Runnable task = handoff.take();
@@ -90,8 +169,12 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
                 try {
                     task.run();
                 }
+                catch (Throwable t) { // the worker keeps running, the executor has already put it back as idle
+                    getUncaughtExceptionHandler().uncaughtException(this, t);
+                }
                 finally {
                     idleStartTime.set(System.nanoTime());
+                    addTasksDone(1);
                     busy.set(false);
                 }
             } catch (InterruptedException e) {
@@ -101,6 +184,65 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         }
     }
 
+    // the loop of a work-stealing worker. A task that throws doesn't kill the worker, the exception goes to the
+    // uncaught exception handler. After shutdown the worker still runs what is left in its deque and then exits.
+    private void runStealing() {
+        while (true) {
+            Runnable task = nextTask();
+            if (task == null) {
+                parked = true;
+                // checked again after parked is set, so a task pushed meanwhile either is seen here or wakes us
+                task = nextTask();
+                if (task == null) {
+                    if (!alive.get()) {
+                        parked = false;
+                        return;
+                    }
+                    LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+                parked = false;
+            }
+            long startWorkTime = System.nanoTime();
+            addTimeIdle(startWorkTime - idleStartTime.get());
+            busy.set(true);
+            try {
+                task.run();
+            } catch (Throwable t) {
+                getUncaughtExceptionHandler().uncaughtException(this, t);
+            } finally {
+                long endWorkTime = System.nanoTime();
+                addTimeUsed(endWorkTime - startWorkTime);
+                idleStartTime.set(endWorkTime);
+                addTasksDone(1);
+                busy.set(false);
+            }
+        }
+    }
+
+    // the head of the own deque, or a task stolen from the tail of a peer's deque
+    private Runnable nextTask() {
+        Runnable task = deque.pollFirst();
+        if (task != null) {
+            queued.decrementAndGet();
+            return task;
+        }
+        for (int i = 1; i <= peers.length; i++) {
+            TiredThread victim = peers[(id + i) % peers.length];
+            if (victim == this) {
+                continue;
+            }
+            task = victim.deque.pollLast();
+            if (task != null) {
+                victim.queued.decrementAndGet();
+                tasksStolen.incrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
     public void addTimeIdle(long timeIdle){
         this.timeIdle.addAndGet(timeIdle);
     }
@@ -109,6 +251,10 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         this.timeUsed.addAndGet(timeUsed);
     }
 
+    void addTasksDone(long tasks) {
+        tasksDone.addAndGet(tasks);
+    }
+
     @Override
     public int compareTo(TiredThread o) { //uses the Double's compare
         // TODO
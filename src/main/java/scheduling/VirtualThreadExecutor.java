@@ -0,0 +1,103 @@
+package scheduling;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs every task on its own virtual thread, so submit never blocks and an executor costs nothing while idle.
+ * At most maxRunning tasks run at the same time, the others wait on a semaphore (which only parks their
+ * virtual thread). Since there are no long-lived workers, the report sums all the tasks: the time they ran,
+ * the time they waited to start and the distribution of that wait.
+ */
+public class VirtualThreadExecutor implements TaskExecutor {
+
+    private final int maxRunning;
+    private final Semaphore permits;
+    // unlike the builder it comes from, the factory can be used by several submitting threads at once
+    private final ThreadFactory factory = Thread.ofVirtual().name("lae-virtual-", 0).factory();
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong tasks = new AtomicLong(0); // started tasks
+    private final AtomicLong timeUsed = new AtomicLong(0);
+    private final AtomicLong timeWaiting = new AtomicLong(0);
+    private final AtomicLong maxWait = new AtomicLong(0);
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(64); // bucket b counts waits below 2^b ns
+
+    public VirtualThreadExecutor(int maxRunning) {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("maxRunning must be at least 1");
+        }
+        this.maxRunning = maxRunning;
+        this.permits = new Semaphore(maxRunning);
+    }
+
+    @Override
+    public void submit(Runnable task) {
+        if (shutdown) {
+            throw new IllegalStateException("The executor is shut down");
+        }
+        long submitTime = System.nanoTime();
+        factory.newThread(() -> {
+            permits.acquireUninterruptibly();
+            long startWorkTime = System.nanoTime();
+            recordWait(startWorkTime - submitTime);
+            tasks.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                timeUsed.addAndGet(System.nanoTime() - startWorkTime);
+                permits.release();
+            }
+        }).start();
+    }
+
+    private void recordWait(long waitNs) {
+        timeWaiting.addAndGet(waitNs);
+        maxWait.accumulateAndGet(waitNs, Math::max);
+        waitHistogram.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, waitNs)));
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return maxRunning;
+    }
+
+    /**
+     * Rejects new tasks. The tasks already submitted still run.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    // the upper bound of the histogram bucket that holds the given fraction of the waits
+    private long waitPercentile(double fraction) {
+        long total = 0;
+        for (int b = 0; b < waitHistogram.length(); b++) {
+            total += waitHistogram.get(b);
+        }
+        long seen = 0;
+        for (int b = 0; b < waitHistogram.length(); b++) {
+            seen += waitHistogram.get(b);
+            if (seen > 0 && seen >= fraction * total) {
+                return b == 0 ? 0 : 1L << Math.min(b, 62);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String getWorkerReport() {
+        return "Virtual threads (at most " + maxRunning + " running):" +
+                "\tTasks: " + tasks.get() +
+                "\tTime used: " + timeUsed.get() + " ns" +
+                "\tTime waiting: " + timeWaiting.get() + " ns" +
+                "\n" +
+                "----------------------------------------\n" +
+                "Wait before start: p50 < " + waitPercentile(0.5) + " ns" +
+                "\tp99 < " + waitPercentile(0.99) + " ns" +
+                "\tmax: " + maxWait.get() + " ns";
+    }
+}
@@ -4,92 +4,733 @@ import parser.*;
 import memory.*;
 import scheduling.*;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class LinearAlgebraEngine {
 
-    private SharedMatrix leftMatrix = new SharedMatrix();
-    private SharedMatrix rightMatrix = new SharedMatrix();
-    private TiredExecutor executor;
+    // the cost model of the task factories, in element operations (an addition, or a multiply-add).
+    // a task should do about TARGET_TASK_COST operations, and a node that costs at most INLINE_COST
+    // is computed on the calling thread since handing it to a worker would take longer than computing it
+    static final long TARGET_TASK_COST = 1 << 16;
+    static final long INLINE_COST = 1 << 12;
+
+    private final TaskExecutor executor;
+    private final boolean ownsExecutor; // the executor is shut down at the end of run
+    private ExecutionPlan lastPlan = null;
+    private long offHeapThreshold = Long.MAX_VALUE; // operands of at least this many bytes are loaded off-heap
+    private Path offHeapDirectory = null;
+    // the flat arrays of the operands and results, recycled once their node is resolved
+    private final BufferArena buffers = new BufferArena();
 
     public LinearAlgebraEngine(int numThreads) {
         // TODO: create executor with given thread count
-        executor = new TiredExecutor(numThreads);
+        this(numThreads, SchedulingMode.HANDOFF);
+    }
+
+    public LinearAlgebraEngine(int numThreads, SchedulingMode mode) {
+        executor = new TiredExecutor(numThreads, mode);
+        ownsExecutor = true;
+    }
+
+    /**
+     * Creates an engine that runs its tasks on executor. The executor isn't shut down by run,
+     * so it can be shared by several engines (e.g. a VirtualThreadExecutor for many small concurrent jobs).
+     */
+    public LinearAlgebraEngine(TaskExecutor executor) {
+        this.executor = executor;
+        ownsExecutor = false;
+    }
+
+    /**
+     * Operands of at least thresholdBytes are loaded into off-heap storage instead of heap arrays: direct memory,
+     * or temporary files mapped from directory if it isn't null. The storage of a node is released once the
+     * node is resolved, so large operands don't stay on the heap while they are computed on.
+     */
+    public void setOffHeap(long thresholdBytes, Path directory) {
+        offHeapThreshold = thresholdBytes;
+        offHeapDirectory = directory;
+    }
+
+    /**
+     * The storage of the operands of one node, released together once the node is resolved.
+     * Large operands are copied by fill tasks (see load) that have to run before the tasks of the node.
+     */
+    private static class Operands {
+        private final OffHeapArena arena; // the off-heap storage of the operands, null if they are on the heap
+        private final List<SharedMatrix> loaded = new ArrayList<>(); // the heap matrices, released to buffers
+        private final List<Runnable> fills = new ArrayList<>();
+
+        private Operands(OffHeapArena arena) {
+            this.arena = arena;
+        }
     }
 
+    /**
+     * The operands, tasks and completion state of one node that is being computed.
+     * Every node gets its own operand matrices, so several nodes can be computed at the same time.
+     */
+    private static class NodeJob {
+        private final ComputationNode node;
+        private final SharedMatrix result; // the matrix the tasks leave the result in, null for a transpose
+        // the row blocks of a sparse result, each one filled by one task (see sparseJob), null for a dense result
+        private final SparseMatrix[] sparseBlocks;
+        private final boolean transposed; // result holds the transpose of the node's value
+        private final List<Runnable> tasks;
+        private final Operands operands;
+        private boolean filled; // the fill tasks of the operands are done
+        private volatile Throwable failure = null;
+        private int slot = -1; // the plan step of the node
+
+        private NodeJob(ComputationNode node, SharedMatrix result, boolean transposed, List<Runnable> tasks, Operands operands) {
+            this(node, result, null, transposed, tasks, operands);
+        }
+
+        private NodeJob(ComputationNode node, SharedMatrix result, SparseMatrix[] sparseBlocks, boolean transposed,
+                        List<Runnable> tasks, Operands operands) {
+            this.node = node;
+            this.result = result;
+            this.sparseBlocks = sparseBlocks;
+            this.transposed = transposed;
+            this.tasks = tasks;
+            this.operands = operands;
+            this.filled = operands.fills.isEmpty();
+        }
+
+        // the tasks are done with the storage of the job, even if one of them failed
+        private void release() {
+            for (SharedMatrix matrix : operands.loaded) {
+                matrix.release();
+            }
+            if (operands.arena != null) {
+                operands.arena.close();
+            }
+        }
+    }
+
+    // the tree is compiled once into an ExecutionPlan. Every step whose children are all resolved is computed
+    // right away and the tasks of all the running steps share the workers. When the last task of a step
+    // finishes it is resolved on this thread and the pending counters of its consumers are decremented,
+    // so a consumer is started as soon as its last child is done.
+    // the results stay in engine storage between the steps, and the storage of a step goes back to buffers
+    // once all of its consumers are resolved. A transpose shares the storage of its operand, so the storage
+    // is counted by the steps that hold it. Only the root is converted to a double[][], on the workers.
+    // a step with fill tasks is started twice: once for the fills and once for its tasks.
     public ComputationNode run(ComputationNode computationRoot) {
         // TODO: resolve computation tree step by step until final matrix is produced
         try{
-            computationRoot.associativeNesting();
-            ComputationNode resolvable = computationRoot.findResolvable();
-            while(resolvable!=null){
-                loadAndCompute(resolvable);
-                resolvable = computationRoot.findResolvable();
+            ExecutionPlan plan = ExecutionPlan.compile(computationRoot);
+            lastPlan = plan;
+            int[] pending = new int[plan.size()];
+            int[] unconsumed = new int[plan.size()]; // consumers that aren't resolved yet
+            Map<SharedMatrix, Integer> holders = new IdentityHashMap<>();
+            BlockingQueue<NodeJob> finished = new LinkedBlockingQueue<>();
+            for(ExecutionPlan.Step step : plan.getSteps()){
+                pending[step.getSlot()] = step.getDependencies().size();
+                unconsumed[step.getSlot()] = step.getConsumers().size();
+                if(pending[step.getSlot()]==0){
+                    start(prepare(step.getNode(), step.getLayout()), step.getSlot(), finished);
+                }
+            }
+            int remaining = plan.size();
+            while(remaining > 0){
+                NodeJob job = finished.take();
+                if(job.failure != null){
+                    job.release();
+                    throw new IllegalStateException("Failed to compute node: " + job.failure.getMessage(), job.failure);
+                }
+                if(!job.filled){ // the operands are loaded, now the node itself is computed
+                    job.filled = true;
+                    start(job, job.slot, finished);
+                    continue;
+                }
+                remaining--;
+                resolve(job);
+                SharedMatrix storage = job.node.getSharedMatrix();
+                if(storage != null){
+                    holders.merge(storage, 1, Integer::sum);
+                }
+                for(int dependency : plan.get(job.slot).getDependencies()){
+                    if(--unconsumed[dependency]==0){
+                        drop(plan.get(dependency).getNode(), holders);
+                    }
+                }
+                for(int consumer : plan.get(job.slot).getConsumers()){
+                    if(--pending[consumer]==0){
+                        start(prepare(plan.get(consumer).getNode(), plan.get(consumer).getLayout()), consumer, finished);
+                    }
+                }
             }
+            materialize(computationRoot);
             return computationRoot;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing", e);
         }finally {
-            try{
-                executor.shutdown();
-            }catch (InterruptedException e){
-                Thread.currentThread().interrupt();
+            if(ownsExecutor){
+                try{
+                    executor.shutdown();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Stops the workers of the executor if the engine created it, e.g. after computing nodes one at a time with
+     * loadAndCompute. run does it by itself. A shared executor is left running.
+     */
+    public void shutdown() throws InterruptedException {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    // the value of node isn't read anymore, its storage is released when no other step holds it
+    private void drop(ComputationNode node, Map<SharedMatrix, Integer> holders) {
+        SharedMatrix storage = node.getSharedMatrix();
+        if (storage != null && holders.merge(storage, -1, Integer::sum) == 0) {
+            holders.remove(storage);
+            storage.release();
+        }
+    }
+
+    // the root is the only value that leaves the engine: it is copied into a double[][] by row-range tasks
+    // (transposed on the way if it is stored transposed), and its storage goes back to buffers.
+    // A sparse root is made dense here, there is no sparse output format
+    private void materialize(ComputationNode root) {
+        SparseMatrix sparse = root.getSparseMatrix();
+        if (sparse != null) {
+            root.resolve((root.isTransposed() ? sparse.transpose() : sparse).toDense(), false);
+            return;
+        }
+        SharedMatrix storage = root.getSharedMatrix();
+        if (storage == null) {
+            return;
+        }
+        int rows = root.getRows();
+        int cols = root.getCols();
+        boolean transposed = root.isTransposed();
+        double[][] value = new double[rows][cols];
+        List<Runnable> tasks = new ArrayList<>();
+        int span = unitsPerTask(rows, cols, 1);
+        for (int i = 0; i < rows; i += span) {
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            tasks.add(() -> LayoutKernel.read(storage, transposed, value, rowStart, rowEnd));
+        }
+        if ((long) rows * cols <= INLINE_COST) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        } else {
+            try {
+                executor.submitAllAsync(tasks).join();
+            } catch (CompletionException e) {
+                throw new IllegalStateException("Failed to read the result: " + e.getCause().getMessage(), e.getCause());
             }
         }
+        root.resolve(value, false);
+        storage.release();
+    }
 
+    // submits the fill tasks of job, or its tasks once the operands are filled, as one batch without waiting for them;
+    // job is put on finished once all of them are done
+    private void start(NodeJob job, int slot, BlockingQueue<NodeJob> finished) {
+        job.slot = slot;
+        if (job.tasks.isEmpty() || estimateCost(job.node) <= INLINE_COST) {
+            runInline(job);
+            finished.add(job);
+            return;
+        }
+        executor.submitAllAsync(job.filled ? job.tasks : job.operands.fills).whenComplete((ignored, failure) -> {
+            job.failure = failure;
+            finished.add(job);
+        });
     }
 
     public void loadAndCompute(ComputationNode node) {
         // TODO: load operand matrices
         // TODO: create compute tasks & submit tasks to executor
-        List<Runnable> tasks=null;
+        NodeJob job = prepare(node, null);
+        if (estimateCost(node) <= INLINE_COST) {
+            runInline(job);
+            if (job.failure != null) {
+                throw new IllegalStateException("Failed to compute node: " + job.failure.getMessage(), job.failure);
+            }
+        } else {
+            try {
+                if (!job.filled) {
+                    executor.submitAllAsync(job.operands.fills).join();
+                    job.filled = true;
+                }
+                executor.submitAllAsync(job.tasks).join();
+            } catch (CompletionException e) {
+                throw new IllegalStateException("Failed to compute node: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        resolve(job);
+    }
+
+    private void runInline(NodeJob job) {
+        try {
+            if (!job.filled) {
+                for (Runnable fill : job.operands.fills) {
+                    fill.run();
+                }
+                job.filled = true;
+            }
+            for (Runnable task : job.tasks) {
+                task.run();
+            }
+        } catch (Throwable t) {
+            job.failure = t;
+        }
+    }
+
+    // the element operations needed to compute node, from the shapes of its children
+    private static long estimateCost(ComputationNode node) {
+        List<ComputationNode> children = node.getChildren();
+        ComputationNode a = children.get(0);
+        long elements = (long) a.getRows() * a.getCols();
+        switch (node.getNodeType()) {
+            case ADD:
+                ComputationNode addend = children.get(1);
+                if (a.getSparseMatrix() != null && addend.getSparseMatrix() != null) {
+                    return nonZeros(a) + nonZeros(addend);
+                }
+                return elements;
+            case NEGATE:
+                return nonZeros(a);
+            case MULTIPLY:
+                // every stored element of a meets a row of b, a sparse row has the average count of non-zeros
+                ComputationNode b = children.get(1);
+                if (b.getSparseMatrix() != null) {
+                    return nonZeros(a) * Math.max(1, nonZeros(b) / b.getRows());
+                }
+                return nonZeros(a) * b.getCols();
+            case FUSED:
+                FusedExpression expression = node.getFusedExpression();
+                long cost = 0;
+                for (FusedExpression.Term term : expression.getTerms()) {
+                    ComputationNode operand = children.get(term.getChild());
+                    cost += (long) operand.getRows() * operand.getCols();
+                }
+                if (expression.hasProduct()) {
+                    ComputationNode left = children.get(expression.getProductLeft());
+                    cost += (long) left.getRows() * left.getCols() * children.get(expression.getProductRight()).getCols();
+                }
+                return cost;
+            default:
+                return 0;
+        }
+    }
+
+    // the elements of node that a kernel visits: its non-zeros if it is sparse, all of them otherwise
+    private static long nonZeros(ComputationNode node) {
+        SparseMatrix sparse = node.getSparseMatrix();
+        return sparse != null ? sparse.nonZeros() : (long) node.getRows() * node.getCols();
+    }
+
+    // how many units (rows, or blocks of rows) each task gets: about TARGET_TASK_COST operations per task,
+    // but less while that leaves workers without a task. tasksPerUnit is the number of tasks a unit is split
+    // into anyway (e.g. the column tiles of a product). Work of at most INLINE_COST stays in one task
+    int unitsPerTask(int units, long costPerUnit, int tasksPerUnit) {
+        if (units <= 1 || (long) units * costPerUnit * tasksPerUnit <= INLINE_COST) {
+            return Math.max(1, units);
+        }
+        long byCost = Math.max(1, TARGET_TASK_COST / Math.max(1, costPerUnit));
+        int chunks = Math.max(1, (executor.getWorkerCount() + tasksPerUnit - 1) / tasksPerUnit);
+        long bySpread = Math.max(1, (units + chunks - 1) / chunks);
+        return (int) Math.min(units, Math.min(byCost, bySpread));
+    }
+
+    // the result of a node stays in its SharedMatrix (see ComputationNode.resolve(SharedMatrix, boolean)) unless
+    // it is off-heap, since the off-heap storage is released with the job.
+    // the row blocks of a sparse result are stacked into one SparseMatrix, unless the fill-in made it so dense
+    // that dense storage takes less memory, then it is scattered into a row-major array from buffers
+    private void resolve(NodeJob job) {
+        if (job.sparseBlocks != null) {
+            SparseMatrix value = SparseMatrix.stack(job.sparseBlocks);
+            if (value.isDenseCheaper()) {
+                double[] flat = buffers.acquire(value.rows() * value.cols());
+                value.toFlat(flat, false);
+                SharedMatrix dense = new SharedMatrix(buffers);
+                dense.loadFlat(flat, value.rows(), value.cols(), VectorOrientation.ROW_MAJOR);
+                dense.freeze();
+                job.node.resolve(dense, job.transposed);
+            } else {
+                job.node.resolve(value, job.transposed);
+            }
+        } else if (job.result == null) { // a transpose only flips the flag of its operand's matrix
+            ComputationNode child = job.node.getChildren().get(0);
+            if (child.getSharedMatrix() != null) {
+                job.node.resolve(child.getSharedMatrix(), !child.isTransposed());
+            } else if (child.getSparseMatrix() != null) {
+                job.node.resolve(child.getSparseMatrix(), !child.isTransposed());
+            } else {
+                job.node.resolve(child.getStoredMatrix(), !child.isTransposed());
+            }
+        } else {
+            job.result.freeze(); // the tasks are done with it, so it is read without locks
+            if (job.result.getData() != null) {
+                job.operands.loaded.remove(job.result); // released once its consumers are done, see run
+                job.node.resolve(job.result, job.transposed);
+            } else {
+                job.node.resolve(job.result.readRowMajor(), job.transposed);
+            }
+        }
+        job.release();
+    }
+
+    // validates the operands of node, loads them and creates the tasks that compute it.
+    // a resolved node may hold the transpose of its value (see ComputationNode.isTransposed), so when it's
+    // cheaper the node is computed on the transposes of its operands, e.g. -(X^T) as (-X)^T and
+    // X^T + Y^T as (X + Y)^T, and the result is flagged as transposed instead of being copied.
+    // layout is how the consumers read the result (see ExecutionPlan.Step.getLayout), null if they read it either
+    // way. Results are stored by rows, so a result that is read by columns is computed as its transpose, e.g. the
+    // right operand of a product, A * B, is computed as B^T * A^T and handed over without a layout conversion.
+    // the operands that the tasks only read are frozen for the batch (see load), so reading them takes no locks;
+    // the only matrix that is written is the result, and every row or tile of it belongs to one task.
+    // ADD, NEGATE and MULTIPLY with a sparse operand use the sparse kernels (see prepareSparseAdd and
+    // prepareSparseMultiply) as long as their dense operands are on the heap
+    private NodeJob prepare(ComputationNode node, VectorOrientation layout) {
+        OffHeapArena arena = null;
+        if (offHeapThreshold != Long.MAX_VALUE) {
+            arena = offHeapDirectory == null ? OffHeapArena.ofDirect() : OffHeapArena.ofFiles(offHeapDirectory);
+        }
+        Operands operands = new Operands(arena);
         List<ComputationNode> children = node.getChildren();
-        double[][] m1 = children.get(0).getMatrix();
+        ComputationNode a = children.get(0);
         if(node.getNodeType() == ComputationNodeType.ADD){
-            double[][] m2 = children.get(1).getMatrix();
+            ComputationNode b = children.get(1);
             // VALIDATION: Dimensions must be identical
-            if (m1.length != m2.length || m1[0].length != m2[0].length) {
+            if (a.getRows() != b.getRows() || a.getCols() != b.getCols()) {
                 throw new IllegalArgumentException("Illegal operation:dimensions mismatch");
             }
-            leftMatrix.loadRowMajor(m1);
-            rightMatrix.loadRowMajor(m2);
-            tasks = createAddTasks();
+            if ((a.getSparseMatrix() != null || b.getSparseMatrix() != null) && loadsOnHeap(a, operands) && loadsOnHeap(b, operands)) {
+                return prepareSparseAdd(node, a, b, layout, operands);
+            }
+            // compute in the layout of the left operand, unless the consumers need the other one
+            boolean transposed = layout == null ? a.isTransposed() : layout == VectorOrientation.COLUMN_MAJOR;
+            SharedMatrix leftMatrix = load(a, transposed, VectorOrientation.ROW_MAJOR, false, operands);
+            SharedMatrix rightMatrix = load(b, transposed, VectorOrientation.ROW_MAJOR, true, operands);
+            return new NodeJob(node, leftMatrix, transposed, createAddTasks(leftMatrix, rightMatrix), operands);
         }else if(node.getNodeType() == ComputationNodeType.NEGATE){
-            leftMatrix.loadRowMajor(m1);
-            tasks = createNegateTasks();
+            if (a.getSparseMatrix() != null) { // one task, the structure is shared and only the values are negated
+                SparseMatrix sparse = a.getSparseMatrix();
+                SparseMatrix[] blocks = new SparseMatrix[1];
+                List<Runnable> tasks = new ArrayList<>();
+                tasks.add(() -> blocks[0] = sparse.negate());
+                return new NodeJob(node, null, blocks, a.isTransposed(), tasks, operands);
+            }
+            boolean transposed = layout == null ? a.isTransposed() : layout == VectorOrientation.COLUMN_MAJOR;
+            SharedMatrix leftMatrix = load(a, transposed, VectorOrientation.ROW_MAJOR, false, operands);
+            return new NodeJob(node, leftMatrix, transposed, createNegateTasks(leftMatrix), operands);
         }else if(node.getNodeType() == ComputationNodeType.MULTIPLY){
-            double[][] m2 = children.get(1).getMatrix();
-
+            ComputationNode b = children.get(1);
             // VALIDATION: Cols of A must equal Rows of B
-            // Note: m1[0].length is columns of A, m2.length is rows of B
-            if (m1[0].length != m2.length) {
+            if (a.getCols() != b.getRows()) {
                 throw new IllegalArgumentException("Illegal operation:dimensions mismatch");
             }
-            leftMatrix.loadRowMajor(m1);
-            rightMatrix.loadColumnMajor(m2);
-            tasks = createMultiplyTasks();
+            if ((a.getSparseMatrix() != null || b.getSparseMatrix() != null) && loadsOnHeap(a, operands) && loadsOnHeap(b, operands)) {
+                return prepareSparseMultiply(node, a, b, operands);
+            }
+            boolean transposed = layout == VectorOrientation.COLUMN_MAJOR; // computed as B^T * A^T
+            ComputationNode left = transposed ? b : a;
+            ComputationNode right = transposed ? a : b;
+            SharedMatrix leftMatrix = load(left, transposed, VectorOrientation.ROW_MAJOR, true, operands);
+            SharedMatrix rightMatrix = load(right, transposed, VectorOrientation.COLUMN_MAJOR, true, operands);
+            int rows = transposed ? b.getCols() : a.getRows();
+            int cols = transposed ? a.getRows() : b.getCols();
+            double[] product = buffers.acquire(rows * cols);
+            SharedMatrix result = new SharedMatrix(buffers);
+            result.loadFlat(product, rows, cols, VectorOrientation.ROW_MAJOR);
+            operands.loaded.add(result);
+            return new NodeJob(node, result, transposed, createMultiplyTasks(leftMatrix, rightMatrix, product), operands);
         }else if(node.getNodeType() == ComputationNodeType.TRANSPOSE){
-            leftMatrix.loadRowMajor(m1);
-            tasks = createTransposeTasks();
+            return new NodeJob(node, null, false, new ArrayList<>(), operands);
+        }else if(node.getNodeType() == ComputationNodeType.FUSED){
+            return prepareFused(node, layout, operands);
+        }
+        throw new IllegalArgumentException("Unsupported operation: " + node.getNodeType());
+    }
+
+    // a fused node is computed into a fresh row-major array. Without a product it's computed in the layout of
+    // its first term, like ADD. With a product the terms are written first and the product is accumulated on top.
+    // Either way it is computed as its transpose if the consumers read it by columns, see prepare.
+    private NodeJob prepareFused(ComputationNode node, VectorOrientation layout, Operands operands) {
+        FusedExpression expression = node.getFusedExpression();
+        List<ComputationNode> children = node.getChildren();
+        List<FusedExpression.Term> terms = expression.getTerms();
+
+        int rows, cols;
+        boolean transposed = false;
+        if (expression.hasProduct()) {
+            ComputationNode a = children.get(expression.getProductLeft());
+            ComputationNode b = children.get(expression.getProductRight());
+            if (a.getCols() != b.getRows()) {
+                throw new IllegalArgumentException("Illegal operation:dimensions mismatch");
+            }
+            rows = a.getRows();
+            cols = b.getCols();
+        } else {
+            FusedExpression.Term first = terms.get(0);
+            ComputationNode firstOperand = children.get(first.getChild());
+            transposed = first.isTransposed() != firstOperand.isTransposed();
+            rows = first.isTransposed() ? firstOperand.getCols() : firstOperand.getRows();
+            cols = first.isTransposed() ? firstOperand.getRows() : firstOperand.getCols();
+        }
+        if (layout != null) {
+            transposed = layout == VectorOrientation.COLUMN_MAJOR;
+        }
+        for (FusedExpression.Term term : terms) {
+            ComputationNode operand = children.get(term.getChild());
+            int termRows = term.isTransposed() ? operand.getCols() : operand.getRows();
+            int termCols = term.isTransposed() ? operand.getRows() : operand.getCols();
+            if (termRows != rows || termCols != cols) {
+                throw new IllegalArgumentException("Illegal operation:dimensions mismatch");
+            }
+        }
+
+        SharedMatrix[] termMatrices = new SharedMatrix[terms.size()];
+        boolean[] negated = new boolean[terms.size()];
+        for (int k = 0; k < terms.size(); k++) {
+            FusedExpression.Term term = terms.get(k);
+            termMatrices[k] = load(children.get(term.getChild()), term.isTransposed() != transposed, VectorOrientation.ROW_MAJOR, true, operands);
+            negated[k] = term.isNegated();
+        }
+        SharedMatrix productLeft = null, productRight = null;
+        if (expression.hasProduct()) {
+            // (A * B)^T = B^T * A^T
+            ComputationNode left = children.get(transposed ? expression.getProductRight() : expression.getProductLeft());
+            ComputationNode right = children.get(transposed ? expression.getProductLeft() : expression.getProductRight());
+            productLeft = load(left, transposed, VectorOrientation.ROW_MAJOR, true, operands);
+            productRight = load(right, transposed, VectorOrientation.COLUMN_MAJOR, true, operands);
+        }
+
+        int outRows = transposed ? cols : rows;
+        int outCols = transposed ? rows : cols;
+        double[] out = buffers.acquire(outRows * outCols);
+        SharedMatrix result = new SharedMatrix(buffers);
+        result.loadFlat(out, outRows, outCols, VectorOrientation.ROW_MAJOR);
+        operands.loaded.add(result);
+        List<Runnable> tasks = createFusedTasks(termMatrices, negated, productLeft, productRight,
+                expression.isProductNegated(), out, outRows, outCols);
+        return new NodeJob(node, result, transposed, tasks, operands);
+    }
+
+    // computes the rows [from, to) of a sparse result, see SparseKernel
+    private interface SparseRows {
+        SparseMatrix compute(int from, int to);
+    }
+
+    // a job whose row-range tasks each compute their rows of a sparse result of the given rows into a block
+    // of their own. The blocks are stacked when the node is resolved
+    private NodeJob sparseJob(ComputationNode node, boolean transposed, int rows, long costPerRow, SparseRows kernel,
+                              Operands operands) {
+        int span = unitsPerTask(rows, Math.max(1, costPerRow), 1);
+        SparseMatrix[] blocks = new SparseMatrix[(rows + span - 1) / span];
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < rows; i += span) {
+            int block = i / span;
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            tasks.add(() -> blocks[block] = kernel.compute(rowStart, rowEnd));
+        }
+        return new NodeJob(node, null, blocks, transposed, tasks, operands);
+    }
+
+    // the CSR form of the value of a sparse operand, or of its transpose if transposed is true. A sparse node
+    // stored transposed holds the CSC form of its value, so one of the two is free and the other one is converted
+    private static SparseMatrix sparseOf(ComputationNode operand, boolean transposed) {
+        SparseMatrix sparse = operand.getSparseMatrix();
+        return operand.isTransposed() == transposed ? sparse : sparse.transpose();
+    }
+
+    // the sparse kernels read their dense operands as flat heap arrays, so a node with an operand that load would
+    // put off-heap is computed on dense storage instead
+    private boolean loadsOnHeap(ComputationNode operand, Operands operands) {
+        return operand.getSparseMatrix() != null || operands.arena == null
+                || (long) operand.getRows() * operand.getCols() * Double.BYTES < offHeapThreshold;
+    }
+
+    // the sum of two sparse operands is sparse, computed in the layout of the left one by merging their rows.
+    // A dense operand is loaded like the left operand of ADD and the non-zeros of the sparse one are added into it
+    private NodeJob prepareSparseAdd(ComputationNode node, ComputationNode a, ComputationNode b, VectorOrientation layout,
+                                     Operands operands) {
+        if (a.getSparseMatrix() != null && b.getSparseMatrix() != null) {
+            boolean transposed = a.isTransposed();
+            SparseMatrix left = sparseOf(a, transposed);
+            SparseMatrix right = sparseOf(b, transposed);
+            long costPerRow = (left.nonZeros() + right.nonZeros()) / left.rows();
+            return sparseJob(node, transposed, left.rows(), costPerRow, (from, to) -> SparseKernel.add(left, right, from, to), operands);
+        }
+        ComputationNode dense = a.getSparseMatrix() == null ? a : b;
+        boolean transposed = layout == null ? dense.isTransposed() : layout == VectorOrientation.COLUMN_MAJOR;
+        SparseMatrix sparse = sparseOf(dense == a ? b : a, transposed);
+        SharedMatrix sum = load(dense, transposed, VectorOrientation.ROW_MAJOR, false, operands);
+        double[] data = sum.getData();
+        List<Runnable> tasks = new ArrayList<>();
+        int rows = sparse.rows();
+        int span = unitsPerTask(rows, Math.max(1, sparse.nonZeros() / rows), 1);
+        for (int i = 0; i < rows; i += span) {
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            tasks.add(() -> SparseKernel.addTo(sparse, data, rowStart, rowEnd));
+        }
+        return new NodeJob(node, sum, transposed, tasks, operands);
+    }
+
+    // the product of two sparse operands is sparse (see SparseKernel.multiply), computed as B^T * A^T when both are
+    // stored transposed so neither has to be converted. A sparse left operand multiplies the rows of the dense
+    // right one into a dense row-major result, and a product with a sparse right operand is computed the same way
+    // as B^T * A^T, flagged as transposed
+    private NodeJob prepareSparseMultiply(ComputationNode node, ComputationNode a, ComputationNode b, Operands operands) {
+        if (a.getSparseMatrix() != null && b.getSparseMatrix() != null) {
+            boolean transposed = a.isTransposed() && b.isTransposed();
+            SparseMatrix left = sparseOf(transposed ? b : a, transposed);
+            SparseMatrix right = sparseOf(transposed ? a : b, transposed);
+            long costPerRow = (long) Math.max(1, left.nonZeros() / left.rows()) * Math.max(1, right.nonZeros() / right.rows());
+            return sparseJob(node, transposed, left.rows(), costPerRow, (from, to) -> SparseKernel.multiply(left, right, from, to), operands);
+        }
+        boolean transposed = a.getSparseMatrix() == null;
+        SparseMatrix left = sparseOf(transposed ? b : a, transposed);
+        SharedMatrix rightMatrix = load(transposed ? a : b, transposed, VectorOrientation.ROW_MAJOR, true, operands);
+        double[] right = rightMatrix.getData();
+        int rows = left.rows();
+        int cols = transposed ? a.getRows() : b.getCols();
+        double[] product = buffers.acquire(rows * cols);
+        SharedMatrix result = new SharedMatrix(buffers);
+        result.loadFlat(product, rows, cols, VectorOrientation.ROW_MAJOR);
+        operands.loaded.add(result);
+        List<Runnable> tasks = new ArrayList<>();
+        int span = unitsPerTask(rows, (long) Math.max(1, left.nonZeros() / rows) * cols, 1);
+        for (int i = 0; i < rows; i += span) {
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            tasks.add(() -> SparseKernel.multiply(left, right, cols, product, rowStart, rowEnd));
+        }
+        return new NodeJob(node, result, transposed, tasks, operands);
+    }
+
+    // loads the value of operand (or its transpose, if transposed is true) with vectors in the given orientation.
+    // When the operand's matrix is stored the other way around, it is loaded in the opposite orientation and
+    // flipped with SharedMatrix.transpose, e.g. the columns of X^T are the rows of X and need no strided copy.
+    // An operand computed by an earlier node is read from its SharedMatrix: in place if the tasks only read it
+    // (readOnly) and it is already stored in the needed orientation, otherwise copied from it.
+    // Operands of at least offHeapThreshold bytes are copied into the arena of operands instead.
+    // A heap operand of more than INLINE_COST elements is only allocated here, the copy is split into fill tasks
+    // (see LayoutKernel) that run on the executor before the tasks of the node.
+    // A read-only operand is frozen for the batch, so reading it takes no locks.
+    // A sparse operand of a node without a sparse kernel (e.g. a FUSED node) is made dense here, on the heap.
+    private SharedMatrix load(ComputationNode operand, boolean transposed, VectorOrientation orientation, boolean readOnly,
+                              Operands operands) {
+        boolean flip = transposed != operand.isTransposed();
+        VectorOrientation stored = (orientation == VectorOrientation.ROW_MAJOR) != flip
+                ? VectorOrientation.ROW_MAJOR : VectorOrientation.COLUMN_MAJOR;
+        SharedMatrix source = operand.getSharedMatrix();
+        SharedMatrix matrix;
+        SparseMatrix sparse = operand.getSparseMatrix();
+        if (source != null && readOnly && source.getOrientation() == stored) {
+            matrix = source.view();
+        } else if (sparse != null) {
+            double[] flat = buffers.acquire(sparse.rows() * sparse.cols());
+            sparse.toFlat(flat, stored == VectorOrientation.COLUMN_MAJOR);
+            matrix = new SharedMatrix(buffers);
+            operands.loaded.add(matrix);
+            matrix.loadFlat(flat, sparse.rows(), sparse.cols(), stored);
+        } else {
+            // operands are stored contiguously in an array from buffers, so a load usually allocates nothing
+            long bytes = (long) operand.getRows() * operand.getCols() * Double.BYTES;
+            boolean offHeap = operands.arena != null && bytes >= offHeapThreshold;
+            if (offHeap) {
+                matrix = new SharedMatrix(operands.arena);
+            } else {
+                matrix = new SharedMatrix(buffers);
+                operands.loaded.add(matrix);
+            }
+            if (!offHeap && bytes / Double.BYTES > INLINE_COST) {
+                addFills(operand, stored, matrix, operands.fills);
+            } else if (source != null) {
+                matrix.loadCopy(source, stored);
+            } else if (stored == VectorOrientation.ROW_MAJOR) {
+                matrix.loadRowMajor(operand.getStoredMatrix());
+            } else {
+                matrix.loadColumnMajor(operand.getStoredMatrix());
+            }
+        }
+        if (flip) {
+            matrix.transpose();
+        }
+        if (readOnly) {
+            matrix.freeze();
+        }
+        return matrix;
+    }
+
+    // allocates the storage of the matrix held by operand in matrix, with vectors in the given orientation,
+    // and adds the tasks that copy it there to fills, each one a range of vectors
+    private void addFills(ComputationNode operand, VectorOrientation orientation, SharedMatrix matrix, List<Runnable> fills) {
+        SharedMatrix source = operand.getSharedMatrix();
+        double[][] stored = source == null ? operand.getStoredMatrix() : null;
+        int rows = source != null ? source.rows() : stored.length;
+        int cols = source != null ? source.cols() : stored[0].length;
+        int count = orientation == VectorOrientation.ROW_MAJOR ? rows : cols;
+        int length = orientation == VectorOrientation.ROW_MAJOR ? cols : rows;
+        double[] flat = buffers.acquire(count * length);
+        matrix.loadFlat(flat, rows, cols, orientation);
+        int span = unitsPerTask(count, length, 1);
+        for (int i = 0; i < count; i += span) {
+            int from = i;
+            int to = Math.min(i + span, count);
+            if (source != null) {
+                fills.add(() -> LayoutKernel.store(source, orientation, flat, length, from, to));
+            } else {
+                boolean columns = orientation == VectorOrientation.COLUMN_MAJOR;
+                fills.add(() -> LayoutKernel.store(stored, columns, flat, length, from, to));
+            }
         }
-        executor.submitAll(tasks);
-        node.resolve(leftMatrix.readRowMajor());
     }
 
-    public List<Runnable> createAddTasks() {
+    // row-range tasks sized by unitsPerTask. The operands are loaded for this node only, so when both are flat
+    // a range is one kernel call over the flat arrays without locks; otherwise the rows are locked one by one
+    // (a frozen right matrix needs no read lock)
+    public List<Runnable> createAddTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix) {
         // TODO: return tasks that perform row-wise addition
         List<Runnable> tasks = new ArrayList<>();
-        for(int i=0;i<leftMatrix.length();i++) {
-            int finalI = i;
+        int rows = leftMatrix.length();
+        int cols = rows == 0 ? 0 : leftMatrix.get(0).length();
+        int span = unitsPerTask(rows, cols, 1);
+        double[] left = leftMatrix.getData();
+        double[] right = rightMatrix.getData();
+        for(int i=0;i<rows;i+=span) {
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            if (left != null && right != null) {
+                tasks.add(() -> VectorKernels.add(left, rowStart * cols, right, rowStart * cols, (rowEnd - rowStart) * cols));
+                continue;
+            }
             Runnable task = ()->{
-                SharedVector leftRow = leftMatrix.get(finalI);
-                SharedVector rightRow = rightMatrix.get(finalI);
-                rightRow.readLock();
-                leftRow.writeLock();
-                try {
-                    leftRow.add(rightRow);
-                } finally {
-                    rightRow.readUnlock();
-                    leftRow.writeUnlock();
+                for (int r = rowStart; r < rowEnd; r++) {
+                    SharedVector leftRow = leftMatrix.get(r);
+                    SharedVector rightRow = rightMatrix.get(r);
+                    rightRow.readLock();
+                    leftRow.writeLock();
+                    try {
+                        leftRow.add(rightRow);
+                    } finally {
+                        rightRow.readUnlock();
+                        leftRow.writeUnlock();
+                    }
                 }
             };
             tasks.add(task);
@@ -97,56 +738,119 @@ public class LinearAlgebraEngine {
         return tasks;
     }
 
-    public List<Runnable> createMultiplyTasks() {
+    // with a speculative executor the tiles are SpeculativeTasks, so a straggling tile can be recomputed elsewhere.
+    // every task owns one output tile (row blocks x column block) of the product instead of one left row,
+    // so each tile streams only its slice of the right matrix. product is a row-major array for the result.
+    // a tile is one ROW_BLOCK high unless the blocks are cheap (a small shared dimension), then unitsPerTask
+    // puts several row blocks in a tile.
+    // the operands aren't written during the batch and the tiles are disjoint, so the tasks take no locks
+    public List<Runnable> createMultiplyTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix, double[] product) {
         // TODO: return tasks that perform row × matrix multiplication
         List<Runnable> tasks = new ArrayList<>();
-        for(int i=0;i<leftMatrix.length();i++) {
-            int finalI = i;
-            Runnable task = ()->{
-                SharedVector leftRow = leftMatrix.get(finalI);
-                leftRow.writeLock();
-                try {
-                    leftRow.vecMatMul(rightMatrix);
-                } finally {
-                    leftRow.writeUnlock();
+        int rows = leftMatrix.length();
+        int cols = rightMatrix.length();
+        int depth = cols == 0 ? 0 : rightMatrix.get(0).length();
+        int rowSpan = tileRows(rows, cols, depth);
+        for(int i=0;i<rows;i+=rowSpan) {
+            for(int j=0;j<cols;j+=GemmKernel.COL_BLOCK) {
+                int rowStart = i;
+                int rowEnd = Math.min(i + rowSpan, rows);
+                int colStart = j;
+                int colEnd = Math.min(j + GemmKernel.COL_BLOCK, cols);
+                if (executor.isSpeculative()) {
+                    tasks.add(speculativeTile(leftMatrix, rightMatrix, product, cols, rowStart, rowEnd, colStart, colEnd));
+                } else {
+                    tasks.add(() -> GemmKernel.multiplyTile(leftMatrix, rightMatrix, product, rowStart, rowEnd, colStart, colEnd));
                 }
-            };
-            tasks.add(task);
+            }
         }
         return tasks;
     }
 
-    public List<Runnable> createNegateTasks() {
-        // TODO: return tasks that negate rows
+    // each task computes one block of the output: the element-wise terms first and then, if there is a product,
+    // the matching GEMM tile accumulated on top. A negated product is handled by negating the terms,
+    // accumulating the product and negating the whole block, so the tile stays in cache for all three steps.
+    // like the multiply tasks, the tasks only read their operands and write disjoint blocks, so they take no locks
+    public List<Runnable> createFusedTasks(SharedMatrix[] terms, boolean[] negated, SharedMatrix productLeft,
+                                           SharedMatrix productRight, boolean productNegated, double[] out, int rows, int cols) {
         List<Runnable> tasks = new ArrayList<>();
-        for(int i=0;i<leftMatrix.length();i++) {
-            int finalI = i;
-            Runnable task = ()->{
-                SharedVector leftRow = leftMatrix.get(finalI);
-                leftRow.writeLock();
-                try {
-                    leftRow.negate();
-                } finally {
-                    leftRow.writeUnlock();
-                }
-            };
-            tasks.add(task);
+        boolean[] termSigns = negated.clone();
+        if (productNegated) {
+            for (int k = 0; k < termSigns.length; k++) {
+                termSigns[k] = !termSigns[k];
+            }
+        }
+        int depth = productRight == null ? 0 : productRight.get(0).length();
+        int rowSpan = tileRows(rows, cols, depth + terms.length);
+        for(int i=0;i<rows;i+=rowSpan) {
+            for(int j=0;j<cols;j+=GemmKernel.COL_BLOCK) {
+                int rowStart = i;
+                int rowEnd = Math.min(i + rowSpan, rows);
+                int colStart = j;
+                int colEnd = Math.min(j + GemmKernel.COL_BLOCK, cols);
+                tasks.add(() -> {
+                    ElementwiseKernel.combine(terms, termSigns, out, cols, rowStart, rowEnd, colStart, colEnd);
+                    if (productLeft != null) {
+                        GemmKernel.multiplyTile(productLeft, productRight, out, rowStart, rowEnd, colStart, colEnd, terms.length > 0);
+                        if (productNegated) {
+                            ElementwiseKernel.negate(out, cols, rowStart, rowEnd, colStart, colEnd);
+                        }
+                    }
+                });
+            }
         }
         return tasks;
     }
 
-    public List<Runnable> createTransposeTasks() {
-        // TODO: return tasks that transpose rows
+    // a tile that may be computed twice at the same time (see SpeculativeTask): every attempt computes into a
+    // buffer of its own, and the attempt that wins copies its buffer into the product
+    private static SpeculativeTask speculativeTile(SharedMatrix leftMatrix, SharedMatrix rightMatrix, double[] product,
+                                                   int cols, int rowStart, int rowEnd, int colStart, int colEnd) {
+        int tileCols = colEnd - colStart;
+        return () -> {
+            double[] tile = new double[(rowEnd - rowStart) * tileCols];
+            GemmKernel.multiplyTile(leftMatrix, rightMatrix, tile, 0, tileCols, rowStart, rowEnd, colStart, colEnd, false);
+            return () -> {
+                for (int i = rowStart; i < rowEnd; i++) {
+                    System.arraycopy(tile, (i - rowStart) * tileCols, product, i * cols + colStart, tileCols);
+                }
+            };
+        };
+    }
+
+    // the rows of an output tile: a multiple of ROW_BLOCK, for an output of rows x cols where every element
+    // costs costPerElement operations
+    private int tileRows(int rows, int cols, int costPerElement) {
+        int blocks = (rows + GemmKernel.ROW_BLOCK - 1) / GemmKernel.ROW_BLOCK;
+        int colTiles = Math.max(1, (cols + GemmKernel.COL_BLOCK - 1) / GemmKernel.COL_BLOCK);
+        long blockCost = (long) GemmKernel.ROW_BLOCK * Math.min(cols, GemmKernel.COL_BLOCK) * costPerElement;
+        return unitsPerTask(blocks, blockCost, colTiles) * GemmKernel.ROW_BLOCK;
+    }
+
+    // row-range tasks like the add tasks
+    public List<Runnable> createNegateTasks(SharedMatrix leftMatrix) {
+        // TODO: return tasks that negate rows
         List<Runnable> tasks = new ArrayList<>();
-        for(int i=0;i<leftMatrix.length();i++) {
-            int finalI = i;
+        int rows = leftMatrix.length();
+        int cols = rows == 0 ? 0 : leftMatrix.get(0).length();
+        int span = unitsPerTask(rows, cols, 1);
+        double[] data = leftMatrix.getData();
+        for(int i=0;i<rows;i+=span) {
+            int rowStart = i;
+            int rowEnd = Math.min(i + span, rows);
+            if (data != null) {
+                tasks.add(() -> VectorKernels.negate(data, rowStart * cols, (rowEnd - rowStart) * cols));
+                continue;
+            }
             Runnable task = ()->{
-                SharedVector leftRow = leftMatrix.get(finalI);
-                leftRow.writeLock();
-                try {
-                    leftRow.transpose();
-                } finally {
-                    leftRow.writeUnlock();
+                for (int r = rowStart; r < rowEnd; r++) {
+                    SharedVector leftRow = leftMatrix.get(r);
+                    leftRow.writeLock();
+                    try {
+                        leftRow.negate();
+                    } finally {
+                        leftRow.writeUnlock();
+                    }
                 }
             };
             tasks.add(task);
@@ -154,11 +858,30 @@ public class LinearAlgebraEngine {
         return tasks;
     }
 
+    /**
+     * Lets the executor recompute multiply tiles that take more than slowFactor times the median tile of their node
+     * on another worker (see TaskExecutor.setSpeculation). 0 turns it off. Executors that can't speculate ignore it.
+     */
+    public void setSpeculation(double slowFactor) {
+        executor.setSpeculation(slowFactor);
+    }
+
+    /**
+     * @return what the planner did with the last tree given to run, or an empty string before run was called
+     */
+    public String getPlanReport() {
+        return lastPlan == null ? "" : lastPlan.getChainOrdering().toString();
+    }
+
     public String getWorkerReport() {
         // TODO: return summary of worker activity
         return executor.getWorkerReport();
     }
 
+    BufferArena getBuffers() {
+        return buffers;
+    }
+
 
 
 
@@ -1,8 +1,11 @@
 package spl.lae;
 import java.io.IOException;
+import java.nio.file.Path;
 
 import parser.*;
+import scheduling.SchedulingMode;
 import scheduling.TiredThread;
+import scheduling.VirtualThreadExecutor;
 
 public class Main {
     public static void main(String[] args) throws IOException {
@@ -10,10 +13,80 @@ public class Main {
         //input->input parser -> computationNode -> engine.run(computationNode) ->
         // solves by using threads on each operator recursively -> solutionNode ->outputWriter
 
-        if (args.length != 3) {
+        // usage: <numThreads> <inputPath> <outputPath> [options]
+        //   --compact  write the result without indentation
+        //   --binary   write the result as a binary matrix file (see parser.MatrixFile), errors are still JSON
+        //   --off-heap=<MB>       load operands of at least MB megabytes off-heap. Released off-heap memory is
+        //       only given back once the garbage collector collects it (see OffHeapArena), so a run that reaches
+        //       -XX:MaxDirectMemorySize can fail with an OutOfMemoryError under -XX:+DisableExplicitGC
+        //   --off-heap-dir=<dir>  keep the off-heap operands in temporary files mapped from dir
+        //   --scheduler=<handoff|work-stealing|proportional|virtual>  how tasks are run: tired workers that get
+        //       tasks handed to them (the default), steal them, or get batches split by their throughput,
+        //       or virtual threads with at most numThreads running
+        //   --speculate=<factor>  recompute multiply tiles that run factor times longer than the median tile
+        //       on another worker (tired workers only, it can't be combined with --scheduler=virtual)
+        //   --sparse=<density>  store matrices with a lower fraction of non-zeros sparse, e.g. 0.05 (off by default).
+        //       The zeros that aren't stored are always +0.0 in the output, where the dense kernels can give -0.0 or NaN
+        if (args.length < 3) {
             System.err.println("Error: Invalid number of arguments.");
             System.exit(1);
         }
+        boolean compact = false;
+        boolean binary = false;
+        long offHeapThreshold = Long.MAX_VALUE;
+        Path offHeapDirectory = null;
+        SchedulingMode schedulingMode = SchedulingMode.HANDOFF;
+        boolean virtualThreads = false;
+        double slowFactor = 0;
+        double sparseDensity = InputParser.DEFAULT_SPARSE_DENSITY;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--compact")) {
+                compact = true;
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].startsWith("--off-heap=")) {
+                try {
+                    offHeapThreshold = Long.parseLong(args[i].substring("--off-heap=".length())) << 20;
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: Invalid off-heap threshold: " + args[i]);
+                    System.exit(1);
+                }
+            } else if (args[i].startsWith("--off-heap-dir=")) {
+                offHeapDirectory = Path.of(args[i].substring("--off-heap-dir=".length()));
+            } else if (args[i].equals("--scheduler=handoff")) {
+                schedulingMode = SchedulingMode.HANDOFF;
+                virtualThreads = false;
+            } else if (args[i].equals("--scheduler=work-stealing")) {
+                schedulingMode = SchedulingMode.WORK_STEALING;
+                virtualThreads = false;
+            } else if (args[i].equals("--scheduler=proportional")) {
+                schedulingMode = SchedulingMode.PROPORTIONAL;
+                virtualThreads = false;
+            } else if (args[i].startsWith("--speculate=")) {
+                try {
+                    slowFactor = Double.parseDouble(args[i].substring("--speculate=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: Invalid speculation factor: " + args[i]);
+                    System.exit(1);
+                }
+            } else if (args[i].startsWith("--sparse=")) {
+                try {
+                    sparseDensity = Double.parseDouble(args[i].substring("--sparse=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: Invalid sparse density: " + args[i]);
+                    System.exit(1);
+                }
+            } else if (args[i].equals("--scheduler=virtual")) {
+                virtualThreads = true;
+            } else {
+                System.err.println("Error: Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        if (virtualThreads && slowFactor > 0) {
+            System.err.println("Error: --speculate needs tired workers, it can't be used with --scheduler=virtual.");
+            System.exit(1);
+        }
         try {
             int numThreads = Integer.parseInt(args[0]);
             String inputPath = args[1];
@@ -23,12 +96,23 @@ public class Main {
                 return;
             }
             InputParser inputParser = new InputParser();
+            inputParser.setSparseDensity(sparseDensity);
             try {
                 ComputationNode computationRoot = inputParser.parse(inputPath);
-                LinearAlgebraEngine engine = new LinearAlgebraEngine(numThreads);
+                LinearAlgebraEngine engine = virtualThreads
+                        ? new LinearAlgebraEngine(new VirtualThreadExecutor(numThreads))
+                        : new LinearAlgebraEngine(numThreads, schedulingMode);
+                engine.setOffHeap(offHeapThreshold, offHeapDirectory);
+                if (slowFactor > 0) {
+                    engine.setSpeculation(slowFactor);
+                }
                 ComputationNode solutionNode = engine.run(computationRoot);
                 double[][] solutionMatrix = solutionNode.getMatrix();
-                OutputWriter.write(solutionMatrix, outputPath);
+                if (binary) {
+                    MatrixFile.write(solutionMatrix, Path.of(outputPath));
+                } else {
+                    OutputWriter.write(solutionMatrix, outputPath, compact);
+                }
 
                 // ============================================================
                 // 5. PRINT WORKER REPORT (Add this part)
@@ -37,6 +121,7 @@ public class Main {
                 System.out.println("Worker Activity Report:");
                 System.out.println(engine.getWorkerReport());
                 System.out.println("========================================");
+                System.out.println(engine.getPlanReport());
 
             } catch (Exception e) {
                 e.printStackTrace();
@@ -2,6 +2,10 @@ package memory;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class SharedMatrixTest {
@@ -66,4 +70,318 @@ class SharedMatrixTest {
         }
     }
 
-}
\ No newline at end of file
+
+    @Test
+    void loadRowMajor_Contiguous() {
+        double[][] data = {{1, 3}, {2, 4.5}, {5.1, 9}}; // 3x2 matrix
+        SharedMatrix matrix = new SharedMatrix(true);
+        matrix.loadRowMajor(data);
+
+        assertEquals(3, matrix.length(), "Should have 3 vectors (rows)");
+        assertEquals(VectorOrientation.ROW_MAJOR, matrix.getOrientation());
+
+        // the rows are laid out one after the other in a single array
+        assertArrayEquals(new double[]{1, 3, 2, 4.5, 5.1, 9}, matrix.getData());
+        for (int r = 0; r < data.length; r++) {
+            for (int c = 0; c < data[0].length; c++) {
+                assertEquals(data[r][c], matrix.get(r).get(c), "Mismatch at row " + r + " col " + c);
+            }
+        }
+    }
+
+    @Test
+    void loadColumnMajor_Contiguous() {
+        double[][] data = {{1, 3}, {2, 4.5}, {5.1, 9}}; // 3x2 matrix
+        SharedMatrix matrix = new SharedMatrix(true);
+        matrix.loadColumnMajor(data);
+
+        assertEquals(2, matrix.length(), "Should have 2 vectors (columns)");
+        assertEquals(VectorOrientation.COLUMN_MAJOR, matrix.getOrientation());
+        assertArrayEquals(new double[]{1, 2, 5.1, 3, 4.5, 9}, matrix.getData());
+
+        double[][] result = matrix.readRowMajor();
+        for (int r = 0; r < data.length; r++) {
+            assertArrayEquals(data[r], result[r], "Mismatch at row " + r);
+        }
+    }
+
+    @Test
+    void loadFlat_VectorsAreViews() {
+        double[] flat = {1, 2, 3, 4, 5, 6};
+        SharedMatrix matrix = new SharedMatrix(true);
+        matrix.loadFlat(flat, 2, 3, VectorOrientation.ROW_MAJOR);
+
+        assertEquals(2, matrix.length());
+        assertEquals(3, matrix.get(1).length());
+        assertEquals(4.0, matrix.get(1).get(0));
+
+        // writing through a row is visible in the flat array and not in the other row
+        matrix.get(1).negate();
+        assertArrayEquals(new double[]{1, 2, 3, -4, -5, -6}, flat);
+
+        assertThrows(IllegalArgumentException.class, () -> matrix.loadFlat(flat, 4, 2, VectorOrientation.ROW_MAJOR));
+    }
+
+    @Test
+    void loadRowMajor_AfterLoadFlat() {
+        // a later load replaces the flat array too, so the kernels that use getData don't work on the old one
+        SharedMatrix matrix = new SharedMatrix();
+        matrix.loadFlat(new double[]{1, 2, 3, 4}, 2, 2, VectorOrientation.ROW_MAJOR);
+        assertNotNull(matrix.getData());
+        matrix.loadRowMajor(new double[][]{{10, 20}, {30, 40}});
+        assertNull(matrix.getData());
+        assertArrayEquals(new double[][]{{10, 20}, {30, 40}}, matrix.readRowMajor());
+    }
+
+    @Test
+    void constructFromArray() {
+        double[][] data = {{1, 2}, {3, 4}};
+        SharedMatrix matrix = new SharedMatrix(data);
+        assertEquals(2, matrix.length());
+        assertEquals(VectorOrientation.ROW_MAJOR, matrix.getOrientation());
+        assertEquals(3.0, matrix.get(1).get(0));
+    }
+
+    @Test
+    void transposeFlipsOrientationOnly() {
+        double[][] data = {{1, 2, 3}, {4, 5, 6}};
+        SharedMatrix matrix = new SharedMatrix(true);
+        matrix.loadRowMajor(data);
+        double[] flat = matrix.getData();
+
+        matrix.transpose();
+
+        assertEquals(VectorOrientation.COLUMN_MAJOR, matrix.getOrientation());
+        assertSame(flat, matrix.getData(), "Transpose should not copy the data");
+        assertArrayEquals(new double[][]{{1, 4}, {2, 5}, {3, 6}}, matrix.readRowMajor());
+    }
+
+    @Test
+    void loadOffHeap() {
+        double[][] data = {{1, 2, 3}, {4, 5, 6}};
+        try (OffHeapArena arena = OffHeapArena.ofDirect()) {
+            SharedMatrix rows = new SharedMatrix(arena);
+            rows.loadRowMajor(data);
+            SharedMatrix columns = new SharedMatrix(arena);
+            columns.loadColumnMajor(data);
+
+            assertTrue(rows.isOffHeap());
+            assertEquals(3, columns.length());
+            assertEquals(6.0, columns.get(2).get(1));
+            assertArrayEquals(data, rows.readRowMajor());
+            assertArrayEquals(data, columns.readRowMajor());
+        }
+    }
+
+    @Test
+    void gemmKernel_OffHeapTiles() {
+        // tiles of different sizes on one thread, so the second one reuses (and has to grow) the first one's packs
+        int n = 80, depth = 300;
+        double[][] a = new double[n][depth];
+        double[][] b = new double[depth][n];
+        for (int i = 0; i < n; i++) {
+            for (int p = 0; p < depth; p++) {
+                a[i][p] = (i + 3 * p) % 7 - 3;
+                b[p][i] = (2 * i + p) % 5 - 2;
+            }
+        }
+        try (OffHeapArena arena = OffHeapArena.ofDirect()) {
+            SharedMatrix left = new SharedMatrix(arena);
+            left.loadRowMajor(a);
+            SharedMatrix right = new SharedMatrix(arena);
+            right.loadColumnMajor(b);
+            double[] out = new double[n * n];
+            GemmKernel.multiplyTile(left, right, out, 0, 10, 0, 5);
+            GemmKernel.multiplyTile(left, right, out, 10, n, 0, n);
+            GemmKernel.multiplyTile(left, right, out, 0, 10, 5, n);
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double expected = 0;
+                    for (int p = 0; p < depth; p++) {
+                        expected += a[i][p] * b[p][j];
+                    }
+                    assertEquals(expected, out[i * n + j], "(" + i + ", " + j + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    void offHeapStorage_ChunksOfWholeVectors() throws Exception {
+        Path dir = Files.createTempDirectory("lae");
+        try (OffHeapArena arena = OffHeapArena.ofFiles(dir)) {
+            // 3 vectors of 4 doubles per 100 byte chunk
+            OffHeapStorage storage = arena.allocate(7, 4, 100);
+            assertEquals(3, storage.chunkCount());
+            for (int v = 0; v < 7; v++) {
+                storage.vector(v).put(0, new double[]{v, v, v, v});
+            }
+            SharedMatrix matrix = new SharedMatrix();
+            matrix.loadOffHeap(storage, VectorOrientation.COLUMN_MAJOR);
+            assertEquals(5.0, matrix.get(5).get(3));
+            assertArrayEquals(new double[]{0, 1, 2, 3, 4, 5, 6}, matrix.readRowMajor()[3]);
+
+            arena.close();
+            assertThrows(IllegalStateException.class, () -> storage.vector(0));
+            assertThrows(IllegalStateException.class, () -> arena.allocate(1, 1));
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count(), "The mapped files should be deleted");
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void bufferArena_RecyclesBySizeClass() {
+        BufferArena buffers = new BufferArena();
+        SharedMatrix matrix = new SharedMatrix(buffers);
+        matrix.loadRowMajor(new double[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {1, 1, 1}, {2, 2, 2}, {3, 3, 3},
+                {4, 4, 4}, {5, 5, 5}, {6, 6, 6}, {7, 7, 7}, {8, 8, 8}, {9, 9, 9}, {0, 0, 0}, {1, 2, 3}, {4, 5, 6},
+                {7, 8, 9}, {1, 1, 1}, {2, 2, 2}, {3, 3, 3}, {4, 4, 4}, {5, 5, 5}, {6, 6, 6}, {7, 7, 7}}); // 69 doubles
+        double[] flat = matrix.getData();
+        assertEquals(80, flat.length, "The flat array should be rounded up to its size class");
+        assertArrayEquals(new double[]{7, 7, 7}, matrix.readRowMajor()[22]);
+
+        matrix.release();
+        assertEquals(0, matrix.length());
+        assertEquals(80 * Double.BYTES, buffers.getRetainedBytes());
+        // any matrix of the same size class gets the array back, the stale values are overwritten by the load
+        SharedMatrix other = new SharedMatrix(buffers);
+        double[][] data = new double[8][9]; // 72 doubles
+        data[7][8] = 1;
+        other.loadColumnMajor(data);
+        assertSame(flat, other.getData());
+        assertArrayEquals(data, other.readRowMajor());
+        assertEquals(1, buffers.getAllocated());
+        assertEquals(1, buffers.getReused());
+        assertEquals(0, buffers.getRetainedBytes());
+
+        // small arrays are allocated with their exact length and never kept
+        double[] small = buffers.acquire(10);
+        assertEquals(10, small.length);
+        buffers.release(small);
+        assertNotSame(small, buffers.acquire(10));
+    }
+
+    @Test
+    void bufferArena_SizeClasses() {
+        // four steps per power of two, so no array is more than a quarter longer than requested
+        BufferArena buffers = new BufferArena();
+        assertEquals(64, buffers.acquire(64).length);
+        assertEquals(80, buffers.acquire(65).length);
+        assertEquals(112, buffers.acquire(100).length);
+        assertEquals(128, buffers.acquire(128).length);
+        assertEquals(160, buffers.acquire(129).length);
+        for (int length = BufferArena.MIN_LENGTH; length < 1 << 20; length += 997) {
+            long classLength = BufferArena.classLength(BufferArena.sizeClass(length));
+            assertTrue(classLength >= length && classLength <= length * 1.25 + 1, length + " -> " + classLength);
+        }
+        assertEquals(41_943_040, BufferArena.classLength(BufferArena.sizeClass(6000 * 6000)));
+    }
+
+    @Test
+    void bufferArena_RetentionCappedByBytes() {
+        BufferArena buffers = new BufferArena(200 * Double.BYTES);
+        double[] first = buffers.acquire(128);
+        double[] second = buffers.acquire(128);
+        buffers.release(first);
+        buffers.release(second); // over the cap, left to the garbage collector
+        assertEquals(128 * Double.BYTES, buffers.getRetainedBytes());
+        assertSame(first, buffers.acquire(128));
+        assertNotSame(second, buffers.acquire(128));
+        assertEquals(0, buffers.getRetainedBytes());
+    }
+
+    @Test
+    void layoutKernel_RangesAndTiles() {
+        // sizes that aren't multiples of the tile, copied in two ranges each
+        int rows = 70, cols = 131;
+        double[][] data = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                data[i][j] = i * 1000 + j;
+            }
+        }
+        double[] byColumns = new double[rows * cols];
+        LayoutKernel.store(data, true, byColumns, rows, 0, 100);
+        LayoutKernel.store(data, true, byColumns, rows, 100, cols);
+        SharedMatrix columns = new SharedMatrix(true);
+        columns.loadFlat(byColumns, rows, cols, VectorOrientation.COLUMN_MAJOR);
+        assertArrayEquals(data, columns.readRowMajor());
+
+        // back to rows from the column-major matrix, and its transpose
+        double[] byRows = new double[rows * cols];
+        LayoutKernel.store(columns, VectorOrientation.ROW_MAJOR, byRows, cols, 0, 3);
+        LayoutKernel.store(columns, VectorOrientation.ROW_MAJOR, byRows, cols, 3, rows);
+        assertEquals(69 * 1000 + 130, byRows[rows * cols - 1]);
+        assertEquals(2 * 1000 + 5, byRows[2 * cols + 5]);
+
+        double[][] transposed = new double[cols][rows];
+        LayoutKernel.read(columns, true, transposed, 0, 64);
+        LayoutKernel.read(columns, true, transposed, 64, cols);
+        for (int j = 0; j < cols; j++) {
+            for (int i = 0; i < rows; i++) {
+                assertEquals(data[i][j], transposed[j][i]);
+            }
+        }
+
+        // off-heap sources, gathered through a pack of each tile and copied directly otherwise
+        try (OffHeapArena arena = OffHeapArena.ofDirect()) {
+            SharedMatrix offHeapRows = new SharedMatrix(arena);
+            offHeapRows.loadRowMajor(data);
+            double[] gathered = new double[rows * cols];
+            LayoutKernel.store(offHeapRows, VectorOrientation.COLUMN_MAJOR, gathered, rows, 0, 70);
+            LayoutKernel.store(offHeapRows, VectorOrientation.COLUMN_MAJOR, gathered, rows, 70, cols);
+            assertArrayEquals(byColumns, gathered);
+
+            double[][] offHeapTransposed = new double[cols][rows];
+            LayoutKernel.read(offHeapRows, true, offHeapTransposed, 0, 100);
+            LayoutKernel.read(offHeapRows, true, offHeapTransposed, 100, cols);
+            assertArrayEquals(transposed, offHeapTransposed);
+            double[][] copied = new double[rows][cols];
+            LayoutKernel.read(offHeapRows, false, copied, 0, rows);
+            assertArrayEquals(data, copied);
+        }
+    }
+
+    @Test
+    void sparseMatrix_KernelsMatchDense() {
+        double[][] a = {{0, 2, 0, 0}, {0, 0, 0, 0}, {1, 0, 0, -3}};
+        double[][] b = {{0, 0, 0, 5}, {0, 0, 0, 0}, {-1, 4, 0, 3}};
+        double[][] c = {{1, 0}, {0, 0}, {0, 2}, {3, 0}};
+        SparseMatrix sa = SparseMatrix.fromDense(a);
+        SparseMatrix sb = SparseMatrix.fromDense(b);
+        SparseMatrix sc = SparseMatrix.fromDense(c);
+        assertEquals(3, sa.nonZeros());
+        assertArrayEquals(a, sa.toDense());
+        assertArrayEquals(new double[][]{{0, 0, 1}, {2, 0, 0}, {0, 0, 0}, {0, 0, -3}}, sa.transpose().toDense());
+        assertArrayEquals(new double[][]{{0, -2, 0, 0}, {0, 0, 0, 0}, {-1, 0, 0, 3}}, sa.negate().toDense());
+
+        // computed as two row ranges and stacked, the 3 - 3 in the last row is dropped
+        SparseMatrix sum = SparseMatrix.stack(new SparseMatrix[]{SparseKernel.add(sa, sb, 0, 1), SparseKernel.add(sa, sb, 1, 3)});
+        assertArrayEquals(new double[][]{{0, 2, 0, 5}, {0, 0, 0, 0}, {0, 4, 0, 0}}, sum.toDense());
+        assertEquals(3, sum.nonZeros());
+
+        double[][] product = {{0, 0}, {0, 0}, {-8, 0}};
+        SparseMatrix sparseProduct = SparseMatrix.stack(new SparseMatrix[]{SparseKernel.multiply(sa, sc, 0, 2), SparseKernel.multiply(sa, sc, 2, 3)});
+        assertArrayEquals(product, sparseProduct.toDense());
+        double[] flatC = new double[8];
+        SparseMatrix.fromDense(c).toFlat(flatC, false);
+        double[] out = {9, 9, 9, 9, 9, 9};
+        SparseKernel.multiply(sa, flatC, 2, out, 0, 3);
+        assertArrayEquals(new double[]{0, 0, 0, 0, -8, 0}, out);
+        SparseKernel.addTo(sparseProduct, out, 2, 3);
+        assertArrayEquals(new double[]{0, 0, 0, 0, -16, 0}, out);
+
+        double[] byColumns = new double[12];
+        sa.toFlat(byColumns, true);
+        assertArrayEquals(new double[]{0, 0, 1, 2, 0, 0, 0, 0, 0, 0, 0, -3}, byColumns);
+
+        assertFalse(sa.isDenseCheaper());
+        assertTrue(SparseMatrix.fromDense(new double[][]{{1, 2}, {3, 0}}).isDenseCheaper());
+        assertEquals(sa, SparseMatrix.fromDense(a));
+        assertEquals(sa.hashCode(), SparseMatrix.fromDense(a).hashCode());
+        assertNotEquals(sa, sb);
+    }
+}
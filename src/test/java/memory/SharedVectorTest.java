@@ -2,6 +2,10 @@ package memory;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class SharedVectorTest {
@@ -94,4 +98,187 @@ class SharedVectorTest {
         // Index 1: (1*2) + (2*2) + (3*2) = 12
         assertEquals(12.0, shardVector.get(1), 0.0001);
     }
+
+    @Test
+    void viewOperations() {
+        double[] data = {9, 1, 2, 3, 9};
+        SharedVector view = new SharedVector(data, 1, 3, VectorOrientation.ROW_MAJOR);
+        SharedVector other = new SharedVector(new double[]{1, 1, 1}, VectorOrientation.COLUMN_MAJOR);
+
+        assertEquals(3, view.length());
+        assertEquals(6.0, view.dot(other));
+
+        view.add(other);
+        // only the viewed range of the backing array changes
+        assertArrayEquals(new double[]{9, 2, 3, 4, 9}, data);
+
+        assertThrows(IllegalArgumentException.class, () -> new SharedVector(data, 3, 3, VectorOrientation.ROW_MAJOR));
+    }
+
+    @Test
+    void vecMatMulOnView() {
+        double[] data = {1, 2, 3, 4, 5, 6};
+        SharedVector view = new SharedVector(data, 3, 3, VectorOrientation.ROW_MAJOR); // {4, 5, 6}
+
+        SharedMatrix sharedMatrix = new SharedMatrix(true);
+        sharedMatrix.loadColumnMajor(new double[][]{{1}, {1}, {1}});
+        view.vecMatMul(sharedMatrix);
+
+        // the result has a different length, so the view no longer writes into the backing array
+        assertEquals(1, view.length());
+        assertEquals(15.0, view.get(0));
+        assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6}, data);
+    }
+
+    @Test
+    void frozenVectors() {
+        SharedMatrix sharedMatrix = new SharedMatrix(true);
+        sharedMatrix.loadColumnMajor(new double[][]{{1, 2}, {1, 2}, {1, 2}});
+        sharedMatrix.freeze();
+        assertTrue(sharedMatrix.isFrozen());
+
+        SharedVector vector = new SharedVector(new double[]{1, 2, 3}, VectorOrientation.ROW_MAJOR);
+        vector.vecMatMul(sharedMatrix);
+        assertEquals(6.0, vector.get(0));
+        assertEquals(12.0, vector.get(1));
+        assertArrayEquals(new double[][]{{1, 2}, {1, 2}, {1, 2}}, sharedMatrix.readRowMajor());
+
+        SharedVector column = sharedMatrix.get(0);
+        column.readLock(); // no-ops, so they don't have to be balanced across threads
+        column.readUnlock();
+        assertThrows(IllegalStateException.class, column::writeLock);
+    }
+
+    @Test
+    void vecMatMulWaitsForWriter() throws InterruptedException {
+        SharedMatrix sharedMatrix = new SharedMatrix();
+        sharedMatrix.loadColumnMajor(new double[][]{{1}, {1}});
+        SharedVector column = sharedMatrix.get(0);
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            column.writeLock();
+            try {
+                locked.countDown();
+                Thread.sleep(50);
+                column.add(new SharedVector(new double[]{1, 1}, VectorOrientation.COLUMN_MAJOR));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                column.writeUnlock();
+            }
+        });
+        writer.start();
+        locked.await();
+
+        // the optimistic read fails while the column is written, so the product waits for the writer
+        SharedVector vector = new SharedVector(new double[]{1, 2}, VectorOrientation.ROW_MAJOR);
+        vector.vecMatMul(sharedMatrix);
+        writer.join();
+        assertEquals(6.0, vector.get(0));
+    }
+
+    @Test
+    void vecMatMulWhileColumnIsReplaced() throws InterruptedException {
+        // the writer replaces the storage of the column over and over (a product with the identity keeps its values),
+        // the optimistic reads that overlap it must retry instead of failing
+        int n = 300;
+        double[][] identity = new double[n][n];
+        double[][] ones = new double[n][2];
+        for (int i = 0; i < n; i++) {
+            identity[i][i] = 1;
+            Arrays.fill(ones[i], 1);
+        }
+        SharedMatrix identityColumns = new SharedMatrix();
+        identityColumns.loadColumnMajor(identity);
+        SharedMatrix sharedMatrix = new SharedMatrix(true);
+        sharedMatrix.loadColumnMajor(ones);
+        SharedVector column = sharedMatrix.get(1); // a view at offset n until its first replacement
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            while (!done.get()) {
+                column.writeLock();
+                try {
+                    column.vecMatMul(identityColumns);
+                } finally {
+                    column.writeUnlock();
+                }
+            }
+        });
+        writer.start();
+        try {
+            double[] row = new double[n];
+            Arrays.fill(row, 2);
+            for (int k = 0; k < 2000; k++) {
+                SharedVector vector = new SharedVector(row, VectorOrientation.ROW_MAJOR);
+                vector.vecMatMul(sharedMatrix);
+                assertEquals(2.0 * n, vector.get(0));
+                assertEquals(2.0 * n, vector.get(1));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    void offHeapOperations() {
+        try (OffHeapArena arena = OffHeapArena.ofDirect()) {
+            OffHeapStorage storage = arena.allocate(1, 3);
+            storage.vector(0).put(0, new double[]{1, 2, 3});
+            SharedVector offHeap = new SharedVector(storage.vector(0), VectorOrientation.ROW_MAJOR);
+            SharedVector onHeap = new SharedVector(new double[]{1, 1, 1}, VectorOrientation.COLUMN_MAJOR);
+
+            assertTrue(offHeap.isOffHeap());
+            assertEquals(6.0, offHeap.dot(onHeap));
+            offHeap.add(onHeap);
+            offHeap.negate();
+            assertEquals(-4.0, storage.vector(0).get(2), "Writes should go to the off-heap storage");
+            onHeap.add(offHeap);
+            assertEquals(-1.0, onHeap.get(0));
+
+            // the off-heap columns are read in place, the result is a heap vector
+            SharedMatrix columns = new SharedMatrix(arena);
+            columns.loadColumnMajor(new double[][]{{1, 2}, {3, 4}, {5, 6}});
+            SharedVector row = new SharedVector(new double[]{1, 1, 1}, VectorOrientation.ROW_MAJOR);
+            row.vecMatMul(columns);
+            assertEquals(2, row.length());
+            assertEquals(9.0, row.get(0));
+            assertEquals(12.0, row.get(1));
+        }
+    }
+
+    @Test
+    void kernelsMatchScalarLoops() {
+        // lengths that leave a tail after the full SIMD vectors
+        Kernels scalar = new ScalarKernels();
+        Kernels active = VectorKernels.active();
+        for (int len : new int[]{0, 1, 3, 7, 17, 64, 101}) {
+            double[] a = new double[len + 2];
+            double[] b = new double[len + 1];
+            for (int i = 0; i < a.length; i++) a[i] = i % 5 - 2.5;
+            for (int i = 0; i < b.length; i++) b[i] = i % 3 + 0.5;
+
+            assertEquals(scalar.dot(a, 2, b, 1, len), active.dot(a, 2, b, 1, len), 1e-9, "dot, length " + len);
+
+            double[] expected = a.clone();
+            double[] actual = a.clone();
+            scalar.add(expected, 2, b, 1, len);
+            active.add(actual, 2, b, 1, len);
+            assertArrayEquals(expected, actual, "add, length " + len);
+
+            scalar.sub(expected, 1, b, 0, len);
+            active.sub(actual, 1, b, 0, len);
+            assertArrayEquals(expected, actual, "sub, length " + len);
+
+            scalar.negate(expected, 1, len);
+            active.negate(actual, 1, len);
+            assertArrayEquals(expected, actual, "negate, length " + len);
+
+            double[] expectedOut = new double[4];
+            double[] actualOut = new double[4];
+            scalar.block2x2(a, 0, a, 2, b, 0, b, 1, len, expectedOut, 0, 2);
+            active.block2x2(a, 0, a, 2, b, 0, b, 1, len, actualOut, 0, 2);
+            assertArrayEquals(expectedOut, actualOut, 1e-9, "block2x2, length " + len);
+        }
+    }
 }
\ No newline at end of file
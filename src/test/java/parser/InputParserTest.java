@@ -0,0 +1,75 @@
+package parser;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the messages are the ones the parser gave when it read the whole document into a JsonNode tree first
+class InputParserTest {
+
+    private static ComputationNode parse(String json) throws IOException, ParseException {
+        Path input = Files.createTempFile("lae", ".json");
+        try {
+            Files.writeString(input, json);
+            return new InputParser().parse(input.toString());
+        } finally {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    private static String parseError(String json) {
+        return assertThrows(ParseException.class, () -> parse(json)).getMessage();
+    }
+
+    @Test
+    void parsesOperationsAndMatrices() throws Exception {
+        ComputationNode root = parse("{\"operands\": [[[1, 2.5], [3, -4]], {\"operator\": \"T\", \"operands\": [[[1, 0], [0, 1]]]}], \"operator\": \"*\"}");
+        assertEquals(ComputationNodeType.MULTIPLY, root.getNodeType());
+        assertArrayEquals(new double[][]{{1, 2.5}, {3, -4}}, root.getChildren().get(0).getMatrix());
+        assertEquals(ComputationNodeType.TRANSPOSE, root.getChildren().get(1).getNodeType());
+    }
+
+    @Test
+    void badOperator() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> parse("{\"operator\": \"/\", \"operands\": [[[1]], [[2]]]}"));
+        assertEquals("Unknown operator: /", e.getMessage());
+    }
+
+    @Test
+    void raggedRows() {
+        assertEquals("Inconsistent row sizes in matrix.", parseError("{\"operator\": \"+\", \"operands\": [[[1, 2], [3]], [[1, 2], [3, 4]]]}"));
+        assertEquals("Inconsistent row sizes in matrix.", parseError("{\"operator\": \"+\", \"operands\": [[[1], [3, 4]], [[1, 2], [3, 4]]]}"));
+        assertEquals("Inconsistent row sizes in matrix.", parseError("{\"operator\": \"-\", \"operands\": [[[1, 2], 3]]}"));
+    }
+
+    @Test
+    void emptyOperands() throws Exception {
+        // an operation without operands is parsed, it's the engine that rejects it
+        assertTrue(parse("{\"operator\": \"+\", \"operands\": []}").getChildren().isEmpty());
+        assertEquals("Empty array cannot be parsed as DataNode.", parseError("{\"operator\": \"-\", \"operands\": [[]]}"));
+    }
+
+    @Test
+    void nonNumericEntriesAreZero() throws Exception {
+        ComputationNode root = parse("{\"operator\": \"-\", \"operands\": [[[1, \"x\"], [true, null]]]}");
+        assertArrayEquals(new double[][]{{1, 0}, {1, 0}}, root.getChildren().get(0).getMatrix());
+        root = parse("{\"operator\": \"-\", \"operands\": [[[1, [2]], [3, {\"a\": 1}]]]}");
+        assertArrayEquals(new double[][]{{1, 0}, {3, 0}}, root.getChildren().get(0).getMatrix());
+    }
+
+    @Test
+    void invalidStructure() {
+        assertEquals("Invalid node structure: {\"operands\":[[[1]]]}", parseError("{\"operands\": [[[1]]]}"));
+        assertEquals("Invalid node structure: {\"operator\":\"+\",\"foo\":3}", parseError("{\"operator\": \"+\", \"foo\": 3}"));
+        assertEquals("Invalid node structure: 5", parseError("{\"operator\": \"-\", \"operands\": [5]}"));
+        assertEquals("Invalid node structure: ", parseError(""));
+        assertEquals("Vectors (1D arrays) are not supported as standalone nodes.", parseError("{\"operator\": \"-\", \"operands\": [[1, 2]]}"));
+        assertTrue(parseError("{\"operator\": \"-\", \"operands\": [[[1, 2]]").startsWith("Failed to read the input JSON file: "));
+    }
+}
@@ -0,0 +1,118 @@
+package parser;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixFileTest {
+
+    // a file with the given header fields followed by elements doubles
+    private static void writeRaw(Path file, int magic, int version, int dtype, int layout, int rows, int cols, int elements) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MatrixFile.HEADER_SIZE + elements * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(magic).putInt(version).putInt(dtype).putInt(layout).putInt(rows).putInt(cols);
+        buffer.position(MatrixFile.HEADER_SIZE);
+        for (int i = 0; i < elements; i++) {
+            buffer.putDouble(i + 1);
+        }
+        Files.write(file, buffer.array());
+    }
+
+    private static String readError(Path file) {
+        return assertThrows(IOException.class, () -> MatrixFile.read(file)).getMessage();
+    }
+
+    @Test
+    void writeThenRead() throws IOException {
+        Path file = Files.createTempFile("lae", ".bin");
+        try {
+            double[][] matrix = {{1, 2, 3}, {-4, 5.5, 0}};
+            MatrixFile.write(matrix, file);
+            assertEquals(MatrixFile.HEADER_SIZE + 6 * Double.BYTES, Files.size(file));
+            ComputationNode node = MatrixFile.read(file);
+            assertFalse(node.isTransposed());
+            assertArrayEquals(matrix, node.getMatrix());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void columnMajorIsReadTransposed() throws IOException {
+        Path file = Files.createTempFile("lae", ".bin");
+        try {
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_COLUMN_MAJOR, 2, 3, 6);
+            ComputationNode node = MatrixFile.read(file);
+            assertTrue(node.isTransposed());
+            assertArrayEquals(new double[][]{{1, 3, 5}, {2, 4, 6}}, node.getMatrix());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void badHeaders() throws IOException {
+        Path file = Files.createTempFile("lae", ".bin");
+        try {
+            writeRaw(file, 0x12345678, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_ROW_MAJOR, 1, 1, 1);
+            assertEquals("Not a matrix file: " + file, readError(file));
+
+            Files.write(file, new byte[MatrixFile.HEADER_SIZE - 1]);
+            assertEquals("Not a matrix file: " + file, readError(file));
+
+            writeRaw(file, MatrixFile.MAGIC, 2, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_ROW_MAJOR, 1, 1, 1);
+            assertEquals("Unsupported matrix file version or element type: " + file, readError(file));
+
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, 2, MatrixFile.LAYOUT_ROW_MAJOR, 1, 1, 1);
+            assertEquals("Unsupported matrix file version or element type: " + file, readError(file));
+
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, 2, 1, 1, 1);
+            assertEquals("Invalid matrix file header: " + file, readError(file));
+
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_ROW_MAJOR, 0, 1, 0);
+            assertEquals("Invalid matrix file header: " + file, readError(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void sizeMismatch() throws IOException {
+        Path file = Files.createTempFile("lae", ".bin");
+        try {
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_ROW_MAJOR, 2, 3, 5);
+            assertEquals("Matrix file size doesn't match its header: " + file, readError(file));
+
+            writeRaw(file, MatrixFile.MAGIC, MatrixFile.VERSION, MatrixFile.DTYPE_FLOAT64, MatrixFile.LAYOUT_ROW_MAJOR, 2, 3, 7);
+            assertEquals("Matrix file size doesn't match its header: " + file, readError(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void writeRejectsWhatTheFormatCantHold() throws IOException {
+        Path file = Files.createTempFile("lae", ".bin");
+        try {
+            Files.writeString(file, "kept");
+            IllegalArgumentException ragged = assertThrows(IllegalArgumentException.class,
+                    () -> MatrixFile.write(new double[][]{{1, 2}, {3}}, file));
+            assertEquals("Inconsistent row sizes in matrix.", ragged.getMessage());
+            assertThrows(IllegalArgumentException.class, () -> MatrixFile.write(new double[][]{{1}, {2, 3}}, file));
+            IllegalArgumentException noColumns = assertThrows(IllegalArgumentException.class,
+                    () -> MatrixFile.write(new double[][]{{}, {}}, file));
+            assertEquals("Can't write a 2x0 matrix to a matrix file.", noColumns.getMessage());
+            IllegalArgumentException empty = assertThrows(IllegalArgumentException.class,
+                    () -> MatrixFile.write(new double[0][], file));
+            assertEquals("Can't write a 0x0 matrix to a matrix file.", empty.getMessage());
+            assertEquals("kept", Files.readString(file), "A rejected matrix shouldn't touch the file");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package parser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the expected bytes come from ObjectMapper, configured the way the writer serialized results before it streamed them
+class OutputWriterTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    public static class ResultMatrix {
+        public double[][] result;
+        public ResultMatrix(double[][] result) { this.result = result; }
+    }
+
+    public static class ErrorMessage {
+        public String error;
+        public ErrorMessage(String error) { this.error = error; }
+    }
+
+    private static final double[][] MATRIX = {
+            {1, -2.5, 0.0, -0.0},
+            {1e-7, 1.2345678901234567e21, Double.MAX_VALUE, Double.MIN_VALUE},
+            {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 100}
+    };
+
+    private interface Writer {
+        void write(String path) throws IOException;
+    }
+
+    private static byte[] written(Writer writer) throws IOException {
+        Path output = Files.createTempFile("lae", ".json");
+        try {
+            writer.write(output.toString());
+            return Files.readAllBytes(output);
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    void prettyMatchesObjectMapper() throws IOException {
+        byte[] expected = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(new ResultMatrix(MATRIX));
+        assertArrayEquals(expected, written(path -> OutputWriter.write(MATRIX, path)));
+        double[][] single = {{42}};
+        assertArrayEquals(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(new ResultMatrix(single)),
+                written(path -> OutputWriter.write(single, path, false)));
+    }
+
+    @Test
+    void compactMatchesObjectMapper() throws IOException {
+        byte[] expected = new ObjectMapper().writeValueAsBytes(new ResultMatrix(MATRIX));
+        assertArrayEquals(expected, written(path -> OutputWriter.write(MATRIX, path, true)));
+    }
+
+    @Test
+    void errorMatchesObjectMapper() throws IOException {
+        String error = "Illegal operation: \"dimensions\" mismatch\n\tat node é–\u0001";
+        byte[] expected = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(new ErrorMessage(error));
+        assertArrayEquals(expected, written(path -> OutputWriter.write(error, path)));
+    }
+
+    @Test
+    void overwritesALongerFile() throws IOException {
+        Path output = Files.createTempFile("lae", ".json");
+        try {
+            Files.writeString(output, "x".repeat(10_000));
+            OutputWriter.write(new double[][]{{1}}, output.toString(), true);
+            assertEquals("{\"result\":[[1.0]]}", Files.readString(output));
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+}
@@ -4,6 +4,10 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -220,4 +224,210 @@ class TiredExecutorTest {
 
         try { executor.shutdown(); } catch (InterruptedException e) {}
     }
-}
\ No newline at end of file
+
+    @Test
+    void testWorkStealing_SubmitAllWaitsForCompletion() throws InterruptedException {
+        TiredExecutor executor = new TiredExecutor(4, SchedulingMode.WORK_STEALING);
+        AtomicInteger counter = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(counter::incrementAndGet);
+        }
+        // a task that throws doesn't kill its worker
+        tasks.add(() -> {
+            throw new RuntimeException("I crashed!");
+        });
+        executor.submitAll(tasks);
+        executor.submitAll(tasks);
+
+        assertEquals(2000, counter.get(), "Not all tasks were executed!");
+        executor.shutdown();
+    }
+
+    @Test
+    void testWorkStealing_IdleWorkerSteals() throws InterruptedException {
+        TiredExecutor executor = new TiredExecutor(2, SchedulingMode.WORK_STEALING);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        CountDownLatch quick = new CountDownLatch(10);
+
+        // both workers get a blocked task, then the quick tasks are split between their deques
+        executor.submit(() -> await(first));
+        executor.submit(() -> await(second));
+        for (int i = 0; i < 10; i++) {
+            executor.submit(quick::countDown);
+        }
+        // only one worker is released, so it has to steal the quick tasks of the other one
+        second.countDown();
+        assertTrue(quick.await(5, TimeUnit.SECONDS), "The free worker should steal the queued tasks");
+        first.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    void testSubmitAllAsync_BatchesCompleteSeparately() throws InterruptedException {
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            TiredExecutor executor = new TiredExecutor(2, mode);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger counter = new AtomicInteger(0);
+
+            List<Runnable> slow = new ArrayList<>();
+            slow.add(() -> await(release));
+            List<Runnable> failing = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                failing.add(counter::incrementAndGet);
+            }
+            failing.add(() -> {
+                throw new IllegalStateException("I crashed!");
+            });
+
+            CompletableFuture<Void> first = executor.submitAllAsync(slow);
+            CompletableFuture<Void> second = executor.submitAllAsync(failing);
+            // the second batch finishes (and fails) while the first one is still running
+            CompletionException e = assertThrows(CompletionException.class, second::join);
+            assertEquals("I crashed!", e.getCause().getMessage());
+            assertEquals(10, counter.get());
+            assertFalse(first.isDone(), mode + ": the first batch should still be running");
+
+            release.countDown();
+            first.join();
+            assertTrue(executor.submitAllAsync(new ArrayList<>()).isDone());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testExceptionDoesNotKillWorker() throws InterruptedException {
+        // a single worker has to survive the task that throws to run the rest
+        TiredExecutor executor = new TiredExecutor(1);
+        AtomicInteger counter = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            throw new RuntimeException("I crashed!");
+        });
+        for (int i = 0; i < 5; i++) {
+            tasks.add(counter::incrementAndGet);
+        }
+        executor.submitAll(tasks);
+        assertEquals(5, counter.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void testProportional_ChunksFollowThroughput() throws InterruptedException {
+        TiredExecutor executor = new TiredExecutor(2, SchedulingMode.PROPORTIONAL);
+        // no worker has done anything yet: an even split
+        assertArrayEquals(new int[]{5, 5}, executor.chunkSizes(10));
+
+        // worker 1 has been 3 times slower than worker 0: it gets a quarter of a batch
+        executor.getWorker(0).addTasksDone(300);
+        executor.getWorker(0).addTimeUsed(1_000_000);
+        executor.getWorker(1).addTasksDone(100);
+        executor.getWorker(1).addTimeUsed(1_000_000);
+        assertArrayEquals(new int[]{750, 250}, executor.chunkSizes(1000));
+        assertArrayEquals(new int[]{1, 0}, executor.chunkSizes(1));
+
+        AtomicInteger counter = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(counter::incrementAndGet);
+        }
+        executor.submitAll(tasks);
+        executor.submitAll(tasks);
+        assertEquals(2000, counter.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void testSpeculation_StragglerIsRerun() throws InterruptedException {
+        TiredExecutor executor = new TiredExecutor(3);
+        executor.setSpeculation(3);
+        CountDownLatch straggler = new CountDownLatch(1);
+        AtomicInteger[] attempts = new AtomicInteger[10];
+        AtomicInteger[] commits = new AtomicInteger[10];
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int index = i;
+            attempts[i] = new AtomicInteger(0);
+            commits[i] = new AtomicInteger(0);
+            tasks.add((SpeculativeTask) () -> {
+                // the first attempt of task 0 hangs until the end of the test
+                if (attempts[index].incrementAndGet() == 1 && index == 0) {
+                    await(straggler);
+                } else {
+                    try { Thread.sleep(5); } catch (InterruptedException e) {}
+                }
+                return () -> commits[index].incrementAndGet();
+            });
+        }
+        CompletableFuture<Void> batch = executor.submitAllAsync(tasks);
+        try {
+            batch.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            fail("The straggler should have been re-run: " + e);
+        }
+        straggler.countDown();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, commits[i].get(), "Task " + i + " should commit exactly once");
+        }
+        assertEquals(2, attempts[0].get());
+        assertTrue(executor.getWorkerReport().contains("Speculative runs: 1\tWon: 1"), executor.getWorkerReport());
+        executor.shutdown();
+    }
+
+    @Test
+    void testSpeculation_SaturatedHandoffPool() throws InterruptedException {
+        TiredExecutor executor = new TiredExecutor(2, SchedulingMode.HANDOFF);
+        executor.setSpeculation(3);
+        CountDownLatch straggler = new CountDownLatch(1);
+        CountDownLatch hog = new CountDownLatch(1);
+        AtomicInteger[] attempts = new AtomicInteger[4];
+        AtomicInteger[] commits = new AtomicInteger[4];
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int index = i;
+            attempts[i] = new AtomicInteger(0);
+            commits[i] = new AtomicInteger(0);
+            tasks.add((SpeculativeTask) () -> {
+                // the first attempt of task 0 hangs until the end of the test, the one of task 3 keeps the other
+                // worker busy until hog is released, so no worker is idle for the second attempt of task 0
+                int attempt = attempts[index].incrementAndGet();
+                if (attempt == 1 && index == 0) {
+                    await(straggler);
+                } else if (attempt == 1 && index == 3) {
+                    await(hog);
+                } else {
+                    try { Thread.sleep(5); } catch (InterruptedException e) {}
+                }
+                return () -> commits[index].incrementAndGet();
+            });
+        }
+        CompletableFuture<Void> batch = executor.submitAllAsync(tasks);
+        Thread.sleep(200);
+        // the checks skip the straggler while both workers are busy instead of blocking the timer
+        assertFalse(batch.isDone());
+        assertEquals(1, attempts[0].get());
+        assertTrue(executor.getWorkerReport().contains("Speculative runs: 0\tWon: 0"), executor.getWorkerReport());
+        hog.countDown();
+        try {
+            batch.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            fail("The straggler should have been re-run once a worker was free: " + e);
+        }
+        straggler.countDown();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, commits[i].get(), "Task " + i + " should commit exactly once");
+        }
+        assertEquals(2, attempts[0].get());
+        assertTrue(executor.getWorkerReport().contains("Speculative runs: 1\tWon: 1"), executor.getWorkerReport());
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package scheduling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadExecutorTest {
+
+    @Test
+    void testSubmitAllWaitsForCompletion() {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(4);
+        AtomicInteger counter = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(counter::incrementAndGet);
+        }
+        executor.submitAll(tasks);
+
+        assertEquals(1000, counter.get(), "Not all tasks were executed!");
+        assertTrue(executor.getWorkerReport().contains("Tasks: 1000"), executor.getWorkerReport());
+        executor.shutdown();
+        assertThrows(IllegalStateException.class, () -> executor.submit(() -> {}));
+    }
+
+    @Test
+    void testAtMostMaxRunning() {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(2);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxSeen = new AtomicInteger(0);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(() -> {
+                maxSeen.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try { Thread.sleep(5); } catch (InterruptedException e) {}
+                running.decrementAndGet();
+            });
+        }
+        executor.submitAll(tasks);
+        assertTrue(maxSeen.get() <= 2, "Ran " + maxSeen.get() + " tasks at the same time");
+    }
+
+    @Test
+    void testManyConcurrentBatches() {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(4);
+        AtomicInteger counter = new AtomicInteger(0);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int b = 0; b < 1000; b++) {
+            List<Runnable> tasks = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                tasks.add(counter::incrementAndGet);
+            }
+            if (b == 500) {
+                tasks.add(() -> {
+                    throw new IllegalStateException("I crashed!");
+                });
+            }
+            batches.add(executor.submitAllAsync(tasks));
+        }
+        for (int b = 0; b < batches.size(); b++) {
+            if (b == 500) {
+                assertThrows(CompletionException.class, batches.get(b)::join);
+            } else {
+                batches.get(b).join();
+            }
+        }
+        assertEquals(5000, counter.get());
+    }
+}
@@ -1,11 +1,27 @@
 package spl.lae;
 
 import org.junit.jupiter.api.Test;
+import memory.SharedMatrix;
+import memory.SparseMatrix;
+import memory.VectorOrientation;
 import parser.ComputationNode;
 import parser.ComputationNodeType;
-
+import parser.ExecutionPlan;
+import parser.InputParser;
+import parser.MatrixFile;
+import scheduling.SchedulingMode;
+import scheduling.TiredExecutor;
+import scheduling.VirtualThreadExecutor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -60,101 +76,887 @@ class LinearAlgebraEngineTest {
 
 
     @Test
-    void testLoadAndCompute_Add() {
+    void testLoadAndCompute_Add() throws InterruptedException {
         LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            ComputationNode nodeA = createLeafNode(new double[][]{{1, 2}, {3, 4}});
+            ComputationNode nodeB = createLeafNode(new double[][]{{10, 20}, {30, 40}});
+            ComputationNode addNode = createOpNode(ComputationNodeType.ADD, nodeA, nodeB);
+
+            lae.loadAndCompute(addNode);
+
+            double[][] res = addNode.getMatrix();
+            assertEquals(11.0, res[0][0]);
+            assertEquals(44.0, res[1][1]);
+        } finally {
+            lae.shutdown();
+        }
+    }
 
-        ComputationNode nodeA = createLeafNode(new double[][]{{1, 2}, {3, 4}});
-        ComputationNode nodeB = createLeafNode(new double[][]{{10, 20}, {30, 40}});
-        ComputationNode addNode = createOpNode(ComputationNodeType.ADD, nodeA, nodeB);
 
-        lae.loadAndCompute(addNode);
+    @Test
+    void testLoadAndCompute_Negate() throws InterruptedException {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            ComputationNode nodeA = createLeafNode(new double[][]{{1, -5}, {-10, 20}});
+            ComputationNode negNode = createUnaryOpNode(ComputationNodeType.NEGATE, nodeA);
+
+            lae.loadAndCompute(negNode);
+
+            double[][] res = negNode.getMatrix();
+            assertEquals(-1.0, res[0][0]);
+            assertEquals(5.0, res[0][1]); // -(-5) = 5
+            assertEquals(10.0, res[1][0]);
+        } finally {
+            lae.shutdown();
+        }
+    }
 
-        double[][] res = addNode.getMatrix();
-        assertEquals(11.0, res[0][0]);
-        assertEquals(44.0, res[1][1]);
+
+    @Test
+    void testLoadAndCompute_Transpose() throws InterruptedException {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            // 2x3 Matrix
+            double[][] data = {
+                    {1, 2, 3},
+                    {4, 5, 6}
+            };
+            ComputationNode nodeA = createLeafNode(data);
+            ComputationNode transNode = createUnaryOpNode(ComputationNodeType.TRANSPOSE, nodeA);
+
+            lae.loadAndCompute(transNode);
+
+            double[][] res = transNode.getMatrix();
+
+            // Should become 3x2
+            assertEquals(3, res.length);
+            assertEquals(2, res[0].length);
+
+            // Check swap: (0,1) became (1,0)
+            assertEquals(2.0, res[1][0]);
+            // Check swap: (1,2) became (2,1)
+            assertEquals(6.0, res[2][1]);
+        } finally {
+            lae.shutdown();
+        }
     }
 
 
     @Test
-    void testLoadAndCompute_Negate() {
+    void testLoadAndCompute_Multiply() throws InterruptedException {
         LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            // 1x2 * 2x1 = 1x1
+            ComputationNode nodeA = createLeafNode(new double[][]{{3, 4}});
+            ComputationNode nodeB = createLeafNode(new double[][]{{2}, {1}});
+            ComputationNode mulNode = createOpNode(ComputationNodeType.MULTIPLY, nodeA, nodeB);
+
+            lae.loadAndCompute(mulNode);
+
+            double[][] res = mulNode.getMatrix();
+            assertEquals(10.0, res[0][0]); // (3*2) + (4*1) = 10
+        } finally {
+            lae.shutdown();
+        }
+    }
+
 
-        ComputationNode nodeA = createLeafNode(new double[][]{{1, -5}, {-10, 20}});
-        ComputationNode negNode = createUnaryOpNode(ComputationNodeType.NEGATE, nodeA);
+    @Test
+    void testDimension_AddMismatch() throws InterruptedException {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            ComputationNode n1 = createLeafNode(new double[][]{{1}});
+            ComputationNode n2 = createLeafNode(new double[][]{{1, 2}}); // Diff size
+            ComputationNode add = createOpNode(ComputationNodeType.ADD, n1, n2);
+
+            Exception e = assertThrows(IllegalArgumentException.class, () -> lae.loadAndCompute(add));
+            assertEquals("Illegal operation:dimensions mismatch", e.getMessage());
+        } finally {
+            lae.shutdown();
+        }
+    }
 
-        lae.loadAndCompute(negNode);
+    @Test
+    void testDimension_MultMismatch() throws InterruptedException {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        try {
+            // A is 1x2 (Cols=2)
+            ComputationNode n1 = createLeafNode(new double[][]{{1, 2}});
+            // B is 3x1 (Rows=3) -> Mismatch!
+            ComputationNode n2 = createLeafNode(new double[][]{{1}, {1}, {1}});
+            ComputationNode mul = createOpNode(ComputationNodeType.MULTIPLY, n1, n2);
+
+            Exception e = assertThrows(IllegalArgumentException.class, () -> lae.loadAndCompute(mul));
+            assertEquals("Illegal operation:dimensions mismatch", e.getMessage());
+        } finally {
+            lae.shutdown();
+        }
+    }
 
-        double[][] res = negNode.getMatrix();
-        assertEquals(-1.0, res[0][0]);
-        assertEquals(5.0, res[0][1]); // -(-5) = 5
-        assertEquals(10.0, res[1][0]);
+    @Test
+    void testLoadAndCompute_MultiplyLargerThanTile() throws InterruptedException {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+        try {
+            // odd sizes that don't divide into the tile and register blocks
+            int n = 131, k = 300, m = 67;
+            double[][] a = new double[n][k];
+            double[][] b = new double[k][m];
+            for (int i = 0; i < n; i++)
+                for (int p = 0; p < k; p++)
+                    a[i][p] = (i * 7 + p * 3) % 11 - 5;
+            for (int p = 0; p < k; p++)
+                for (int j = 0; j < m; j++)
+                    b[p][j] = (p * 5 + j) % 13 - 6;
+
+            ComputationNode mulNode = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b));
+            lae.loadAndCompute(mulNode);
+
+            double[][] res = mulNode.getMatrix();
+            assertEquals(n, res.length);
+            assertEquals(m, res[0].length);
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < m; j++) {
+                    double expected = 0;
+                    for (int p = 0; p < k; p++) {
+                        expected += a[i][p] * b[p][j];
+                    }
+                    assertEquals(expected, res[i][j], 1e-9, "Mismatch at [" + i + "][" + j + "]");
+                }
+            }
+        } finally {
+            lae.shutdown();
+        }
     }
 
+    @Test
+    void testRun_IndependentSubtrees() {
+        // Scenario: (A * B) + -(C * D)^T, the two products don't depend on each other
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+
+        ComputationNode nodeA = createLeafNode(new double[][]{{1, 2}, {3, 4}});
+        ComputationNode nodeB = createLeafNode(new double[][]{{0, 1}, {1, 0}});
+        ComputationNode nodeC = createLeafNode(new double[][]{{2, 0}, {0, 2}});
+        ComputationNode nodeD = createLeafNode(new double[][]{{1, 1}, {0, 1}});
+
+        ComputationNode left = createOpNode(ComputationNodeType.MULTIPLY, nodeA, nodeB); // {{2, 1}, {4, 3}}
+        ComputationNode right = createUnaryOpNode(ComputationNodeType.NEGATE,
+                createUnaryOpNode(ComputationNodeType.TRANSPOSE,
+                        createOpNode(ComputationNodeType.MULTIPLY, nodeC, nodeD))); // -{{2, 0}, {2, 2}}
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD, left, right);
+
+        double[][] result = lae.run(rootNode).getMatrix();
+        assertArrayEquals(new double[]{0, 1}, result[0]);
+        assertArrayEquals(new double[]{2, 1}, result[1]);
+    }
 
     @Test
-    void testLoadAndCompute_Transpose() {
+    void testRun_MismatchInsideTree() {
         LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
 
-        // 2x3 Matrix
-        double[][] data = {
-                {1, 2, 3},
-                {4, 5, 6}
-        };
-        ComputationNode nodeA = createLeafNode(data);
-        ComputationNode transNode = createUnaryOpNode(ComputationNodeType.TRANSPOSE, nodeA);
+        ComputationNode ok = createUnaryOpNode(ComputationNodeType.NEGATE, createLeafNode(new double[][]{{1, 2}}));
+        ComputationNode bad = createOpNode(ComputationNodeType.ADD,
+                createLeafNode(new double[][]{{1}}), createLeafNode(new double[][]{{1, 2}}));
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD, ok, bad);
 
-        lae.loadAndCompute(transNode);
+        Exception e = assertThrows(IllegalArgumentException.class, () -> lae.run(rootNode));
+        assertEquals("Illegal operation:dimensions mismatch", e.getMessage());
+    }
 
-        double[][] res = transNode.getMatrix();
+    @Test
+    void testRun_NestedNaryOperation() {
+        // Scenario: -(A + B + C), the n-ary addition is not the root
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
 
-        // Should become 3x2
-        assertEquals(3, res.length);
-        assertEquals(2, res[0].length);
+        List<ComputationNode> operands = new ArrayList<>();
+        operands.add(createLeafNode(new double[][]{{1, 2}}));
+        operands.add(createLeafNode(new double[][]{{10, 20}}));
+        operands.add(createLeafNode(new double[][]{{100, 200}}));
+        ComputationNode sum = new ComputationNode(ComputationNodeType.ADD, operands);
+        ComputationNode rootNode = createUnaryOpNode(ComputationNodeType.NEGATE, sum);
 
-        // Check swap: (0,1) became (1,0)
-        assertEquals(2.0, res[1][0]);
-        // Check swap: (1,2) became (2,1)
-        assertEquals(6.0, res[2][1]);
+        double[][] result = lae.run(rootNode).getMatrix();
+        assertArrayEquals(new double[]{-111, -222}, result[0]);
     }
 
-
     @Test
-    void testLoadAndCompute_Multiply() {
-        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+    void testRun_LongChain() {
+        // a very long n-ary addition becomes a deep left-nested tree
+        int operandsCount = 20000;
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
 
-        // 1x2 * 2x1 = 1x1
-        ComputationNode nodeA = createLeafNode(new double[][]{{3, 4}});
-        ComputationNode nodeB = createLeafNode(new double[][]{{2}, {1}});
-        ComputationNode mulNode = createOpNode(ComputationNodeType.MULTIPLY, nodeA, nodeB);
+        List<ComputationNode> operands = new ArrayList<>();
+        for (int i = 0; i < operandsCount; i++) {
+            operands.add(createLeafNode(new double[][]{{1}}));
+        }
+        ComputationNode rootNode = new ComputationNode(ComputationNodeType.ADD, operands);
 
-        lae.loadAndCompute(mulNode);
+        double[][] result = lae.run(rootNode).getMatrix();
+        assertEquals(operandsCount, result[0][0]);
+    }
 
-        double[][] res = mulNode.getMatrix();
-        assertEquals(10.0, res[0][0]); // (3*2) + (4*1) = 10
+    private ComputationNode transposeOf(double[][] data) {
+        return createUnaryOpNode(ComputationNodeType.TRANSPOSE, createLeafNode(data));
     }
 
+    @Test
+    void testRun_TransposeViews() {
+        double[][] x = {{1, 2, 3}, {4, 5, 6}}; // 2x3
+        double[][] y = {{1, 0, 2}, {0, 1, 3}}; // 2x3
+        double[][] z = {{1, 1}, {2, 2}, {3, 3}}; // 3x2
+
+        // X^T + Y^T = {{2, 4}, {2, 6}, {5, 9}}
+        ComputationNode sum = createOpNode(ComputationNodeType.ADD, transposeOf(x), transposeOf(y));
+        assertArrayEquals(new double[][]{{2, 4}, {2, 6}, {5, 9}}, new LinearAlgebraEngine(2).run(sum).getMatrix());
+
+        // X^T + Z = {{2, 5}, {4, 7}, {6, 9}}
+        ComputationNode mixed = createOpNode(ComputationNodeType.ADD, transposeOf(x), createLeafNode(z));
+        assertArrayEquals(new double[][]{{2, 5}, {4, 7}, {6, 9}}, new LinearAlgebraEngine(2).run(mixed).getMatrix());
+
+        // -(X^T) = {{-1, -4}, {-2, -5}, {-3, -6}}
+        ComputationNode negated = createUnaryOpNode(ComputationNodeType.NEGATE, transposeOf(x));
+        assertArrayEquals(new double[][]{{-1, -4}, {-2, -5}, {-3, -6}}, new LinearAlgebraEngine(2).run(negated).getMatrix());
+
+        // X * Y^T = {{7, 11}, {16, 23}}
+        ComputationNode rightT = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(x), transposeOf(y));
+        assertArrayEquals(new double[][]{{7, 11}, {16, 23}}, new LinearAlgebraEngine(2).run(rightT).getMatrix());
+
+        // X^T * Y = {{1, 4, 14}, {2, 5, 19}, {3, 6, 24}}
+        ComputationNode leftT = createOpNode(ComputationNodeType.MULTIPLY, transposeOf(x), createLeafNode(y));
+        assertArrayEquals(new double[][]{{1, 4, 14}, {2, 5, 19}, {3, 6, 24}}, new LinearAlgebraEngine(2).run(leftT).getMatrix());
+
+        // (X^T)^T = X
+        ComputationNode twice = createUnaryOpNode(ComputationNodeType.TRANSPOSE, transposeOf(x));
+        assertArrayEquals(x, new LinearAlgebraEngine(2).run(twice).getMatrix());
+    }
 
     @Test
-    void testDimension_AddMismatch() {
+    void testLoadAndCompute_TransposeIsAView() throws InterruptedException {
         LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
-        ComputationNode n1 = createLeafNode(new double[][]{{1}});
-        ComputationNode n2 = createLeafNode(new double[][]{{1, 2}}); // Diff size
-        ComputationNode add = createOpNode(ComputationNodeType.ADD, n1, n2);
+        try {
+            double[][] data = {{1, 2, 3}, {4, 5, 6}};
+            ComputationNode transNode = transposeOf(data);
+            lae.loadAndCompute(transNode);
+
+            // nothing was copied, the node keeps its operand's matrix and only remembers it is transposed
+            assertTrue(transNode.isTransposed());
+            assertSame(data, transNode.getStoredMatrix());
+            assertEquals(3, transNode.getRows());
+            assertEquals(2, transNode.getCols());
+        } finally {
+            lae.shutdown();
+        }
+    }
+
+    @Test
+    void testRun_FusedElementwiseChain() {
+        // -(A + B^T) + C is one fused node: -A - B^T + C
+        double[][] a = {{1, 2}, {3, 4}};
+        double[][] b = {{10, 30}, {20, 40}};
+        double[][] c = {{100, 100}, {100, 100}};
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD,
+                createUnaryOpNode(ComputationNodeType.NEGATE,
+                        createOpNode(ComputationNodeType.ADD, createLeafNode(a), transposeOf(b))),
+                createLeafNode(c));
+
+        ExecutionPlan plan = ExecutionPlan.compile(rootNode);
+        assertEquals(1, plan.size(), "The whole chain should be a single step");
+        assertEquals(ComputationNodeType.FUSED, rootNode.getNodeType());
+
+        double[][] result = new LinearAlgebraEngine(2).run(rootNode).getMatrix();
+        assertArrayEquals(new double[][]{{89, 78}, {67, 56}}, result);
+    }
 
-        Exception e = assertThrows(IllegalArgumentException.class, () -> lae.loadAndCompute(add));
+    @Test
+    void testRun_FusedMultiplyAdd() {
+        double[][] a = {{1, 2, 3}, {4, 5, 6}}; // 2x3
+        double[][] b = {{1, 0}, {0, 1}, {1, 1}}; // 3x2, A * B = {{4, 5}, {10, 11}}
+        double[][] c = {{1, 1}, {1, 1}};
+
+        // A * B + C
+        ComputationNode sum = createOpNode(ComputationNodeType.ADD,
+                createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b)), createLeafNode(c));
+        assertArrayEquals(new double[][]{{5, 6}, {11, 12}}, new LinearAlgebraEngine(2).run(sum).getMatrix());
+
+        // C + -(A * B)
+        ComputationNode difference = createOpNode(ComputationNodeType.ADD, createLeafNode(c),
+                createUnaryOpNode(ComputationNodeType.NEGATE,
+                        createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b))));
+        assertArrayEquals(new double[][]{{-3, -4}, {-9, -10}}, new LinearAlgebraEngine(2).run(difference).getMatrix());
+
+        // (A * B)^T + C, the transposed product is computed on its own
+        ComputationNode transposedProduct = createOpNode(ComputationNodeType.ADD,
+                createUnaryOpNode(ComputationNodeType.TRANSPOSE,
+                        createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b))),
+                createLeafNode(c));
+        assertArrayEquals(new double[][]{{5, 11}, {6, 12}}, new LinearAlgebraEngine(2).run(transposedProduct).getMatrix());
+    }
+
+    @Test
+    void testRun_FusedMismatch() {
+        ComputationNode rootNode = createUnaryOpNode(ComputationNodeType.NEGATE,
+                createOpNode(ComputationNodeType.ADD,
+                        createLeafNode(new double[][]{{1, 2}}), createLeafNode(new double[][]{{1}, {2}})));
+        Exception e = assertThrows(IllegalArgumentException.class, () -> new LinearAlgebraEngine(2).run(rootNode));
         assertEquals("Illegal operation:dimensions mismatch", e.getMessage());
     }
 
     @Test
-    void testDimension_MultMismatch() {
+    void testRun_MatrixChainOrdering() {
+        // A (20x2) * B (2x20) * C (20x2): (A * B) * C costs 3200 FLOPs, A * (B * C) only 320
+        double[][] a = new double[20][2];
+        double[][] b = new double[2][20];
+        double[][] c = new double[20][2];
+        for (int i = 0; i < 20; i++) {
+            a[i][0] = i;
+            a[i][1] = 1;
+            b[0][i] = 1;
+            b[1][i] = i % 3;
+            c[i][0] = 2;
+            c[i][1] = -i;
+        }
+        List<ComputationNode> factors = new ArrayList<>();
+        factors.add(createLeafNode(a));
+        factors.add(createLeafNode(b));
+        factors.add(createLeafNode(c));
+        ComputationNode rootNode = new ComputationNode(ComputationNodeType.MULTIPLY, factors);
+
         LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
-        // A is 1x2 (Cols=2)
-        ComputationNode n1 = createLeafNode(new double[][]{{1, 2}});
-        // B is 3x1 (Rows=3) -> Mismatch!
-        ComputationNode n2 = createLeafNode(new double[][]{{1}, {1}, {1}});
-        ComputationNode mul = createOpNode(ComputationNodeType.MULTIPLY, n1, n2);
+        double[][] result = lae.run(rootNode).getMatrix();
+        assertEquals("Matrix chains reordered: 1\tEstimated FLOPs: 3200 -> 320", lae.getPlanReport());
+
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 2; j++) {
+                double expected = 0;
+                for (int k = 0; k < 20; k++) {
+                    expected += (a[i][0] * b[0][k] + a[i][1] * b[1][k]) * c[k][j];
+                }
+                assertEquals(expected, result[i][j], 1e-9);
+            }
+        }
+    }
 
-        Exception e = assertThrows(IllegalArgumentException.class, () -> lae.loadAndCompute(mul));
+    @Test
+    void testRun_MatrixChainMismatch() {
+        // the chain doesn't match, so it is left for the engine to report
+        List<ComputationNode> factors = new ArrayList<>();
+        factors.add(createLeafNode(new double[][]{{1, 2}}));
+        factors.add(createLeafNode(new double[][]{{1}, {2}}));
+        factors.add(createLeafNode(new double[][]{{1, 2}, {3, 4}}));
+        ComputationNode rootNode = new ComputationNode(ComputationNodeType.MULTIPLY, factors);
+
+        Exception e = assertThrows(IllegalArgumentException.class, () -> new LinearAlgebraEngine(2).run(rootNode));
         assertEquals("Illegal operation:dimensions mismatch", e.getMessage());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testRun_CommonSubexpressions() {
+        // (A * B) + (A' * B') where A', B' have the same content as A, B: the product is computed once
+        ComputationNode first = createOpNode(ComputationNodeType.MULTIPLY,
+                createLeafNode(new double[][]{{1, 2}, {3, 4}}), createLeafNode(new double[][]{{1, 0}, {1, 1}}));
+        ComputationNode second = createOpNode(ComputationNodeType.MULTIPLY,
+                createLeafNode(new double[][]{{1, 2}, {3, 4}}), createLeafNode(new double[][]{{1, 0}, {1, 1}}));
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD, first, second);
+
+        ExecutionPlan plan = ExecutionPlan.compile(rootNode);
+        assertEquals(2, plan.size(), "One product and one sum");
+        assertSame(rootNode.getChildren().get(0), rootNode.getChildren().get(1));
+        assertEquals(1, plan.get(0).getConsumers().size());
+
+        double[][] result = new LinearAlgebraEngine(2).run(rootNode).getMatrix();
+        assertArrayEquals(new double[][]{{6, 4}, {14, 8}}, result);
+    }
+
+    @Test
+    void testRun_SharedSubtreeWithSeveralConsumers() {
+        // X = A + B appears under a product and under a negation: -(A + B) * (A + B)^T
+        double[][] a = {{1, 2}};
+        double[][] b = {{3, 4}};
+        ComputationNode sum1 = createOpNode(ComputationNodeType.ADD, createLeafNode(a), createLeafNode(b));
+        ComputationNode sum2 = createOpNode(ComputationNodeType.ADD, createLeafNode(a), createLeafNode(b));
+        ComputationNode rootNode = createOpNode(ComputationNodeType.MULTIPLY,
+                createUnaryOpNode(ComputationNodeType.NEGATE, sum1),
+                createUnaryOpNode(ComputationNodeType.TRANSPOSE, sum2));
+
+        double[][] result = new LinearAlgebraEngine(2).run(rootNode).getMatrix();
+        assertArrayEquals(new double[][]{{-52}}, result); // -(4*4 + 6*6)
+    }
+
+    @Test
+    void testRun_MatrixFiles() throws IOException {
+        // a row-major file written by MatrixFile and a column-major file written by hand: A * B
+        Path dir = Files.createTempDirectory("lae");
+        Path left = dir.resolve("a.laem");
+        Path right = dir.resolve("b.laem");
+        try {
+            MatrixFile.write(new double[][]{{1, 2, 3}, {4, 5, 6}}, left);
+            ByteBuffer buffer = ByteBuffer.allocate(MatrixFile.HEADER_SIZE + 6 * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MatrixFile.MAGIC).putInt(MatrixFile.VERSION).putInt(MatrixFile.DTYPE_FLOAT64)
+                    .putInt(MatrixFile.LAYOUT_COLUMN_MAJOR).putInt(3).putInt(2);
+            buffer.position(MatrixFile.HEADER_SIZE);
+            for (double value : new double[]{1, 0, 1, 0, 1, 1}) { // columns of {{1, 0}, {0, 1}, {1, 1}}
+                buffer.putDouble(value);
+            }
+            Files.write(right, buffer.array());
+
+            ComputationNode a = MatrixFile.read(left);
+            ComputationNode b = MatrixFile.read(right);
+            assertTrue(b.isTransposed());
+            assertArrayEquals(new double[][]{{1, 0}, {0, 1}, {1, 1}}, b.getMatrix());
+
+            double[][] result = new LinearAlgebraEngine(2).run(createOpNode(ComputationNodeType.MULTIPLY, a, b)).getMatrix();
+            assertArrayEquals(new double[][]{{4, 5}, {10, 11}}, result);
+        } finally {
+            Files.deleteIfExists(left);
+            Files.deleteIfExists(right);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    void testRun_OffHeapOperands() {
+        // -(A * B) + C with every operand off-heap, the product is larger than a tile
+        int n = 70, k = 300;
+        double[][] a = new double[n][k];
+        double[][] b = new double[k][n];
+        double[][] c = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int p = 0; p < k; p++) {
+                a[i][p] = (i + p) % 7 - 3;
+                b[p][i] = (i * p) % 5 - 2;
+            }
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                c[i][j] = i - j;
+        ComputationNode product = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b));
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD,
+                createUnaryOpNode(ComputationNodeType.NEGATE, product), createLeafNode(c));
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(3);
+        lae.setOffHeap(0, null);
+        double[][] result = lae.run(rootNode).getMatrix();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = c[i][j];
+                for (int p = 0; p < k; p++) {
+                    expected -= a[i][p] * b[p][j];
+                }
+                assertEquals(expected, result[i][j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void testRun_WorkStealing() {
+        // the LongChain tree and a product larger than a tile on work-stealing workers
+        List<ComputationNode> operands = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            operands.add(createLeafNode(new double[][]{{1, 1}}));
+        }
+        ComputationNode sum = new ComputationNode(ComputationNodeType.ADD, operands);
+        double[][] a = new double[100][100];
+        for (int i = 0; i < 100; i++) {
+            a[i][i] = 2;
+        }
+        ComputationNode rootNode = createOpNode(ComputationNodeType.MULTIPLY,
+                createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(new double[][]{{1}, {1}}), sum),
+                createLeafNode(new double[][]{{1}, {2}}));
+        ComputationNode square = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(a));
+
+        double[][] result = new LinearAlgebraEngine(4, SchedulingMode.WORK_STEALING).run(rootNode).getMatrix();
+        assertArrayEquals(new double[][]{{6000}, {6000}}, result);
+        double[][] squared = new LinearAlgebraEngine(3, SchedulingMode.WORK_STEALING).run(square).getMatrix();
+        assertEquals(4.0, squared[57][57]);
+        assertEquals(0.0, squared[57][58]);
+
+        // the same product with batches split by throughput
+        ComputationNode again = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(a));
+        squared = new LinearAlgebraEngine(3, SchedulingMode.PROPORTIONAL).run(again).getMatrix();
+        assertEquals(4.0, squared[99][99]);
+    }
+
+    @Test
+    void testCreateTasks_RowRanges() {
+        // a tall, narrow matrix gets a few row-range tasks instead of one task per row
+        int rows = 100000, cols = 8;
+        double[][] a = new double[rows][cols];
+        double[][] b = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                a[i][j] = i;
+                b[i][j] = j;
+            }
+        }
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+        SharedMatrix left = new SharedMatrix(true);
+        left.loadRowMajor(a);
+        SharedMatrix right = new SharedMatrix(true);
+        right.loadRowMajor(b);
+        List<Runnable> tasks = lae.createAddTasks(left, right);
+        assertTrue(tasks.size() >= 4 && tasks.size() < 100, "Got " + tasks.size() + " tasks");
+        tasks.forEach(Runnable::run);
+        assertEquals(99999 + 7, left.get(99999).get(7));
+
+        // a small matrix is a single task
+        SharedMatrix small = new SharedMatrix(true);
+        small.loadRowMajor(new double[][]{{1, 2}, {3, 4}});
+        assertEquals(1, lae.createNegateTasks(small).size());
+
+        ComputationNode rootNode = createOpNode(ComputationNodeType.ADD, createLeafNode(a),
+                createUnaryOpNode(ComputationNodeType.NEGATE, createLeafNode(b)));
+        double[][] result = lae.run(rootNode).getMatrix();
+        assertEquals(99999 - 7, result[99999][7]);
+        assertEquals(-3, result[0][3]);
+    }
+
+    @Test
+    void testRun_SharedVirtualThreadExecutor() throws InterruptedException {
+        // many jobs at the same time on one executor, which run doesn't shut down
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(4);
+        try {
+            double[][] a = new double[70][70];
+            for (int i = 0; i < 70; i++) {
+                a[i][i] = 1;
+            }
+            List<CompletableFuture<double[][]>> jobs = new ArrayList<>();
+            for (int job = 0; job < 50; job++) {
+                double scale = job;
+                double[][] b = new double[70][70];
+                for (int i = 0; i < 70; i++) {
+                    b[i][69 - i] = scale;
+                }
+                ComputationNode rootNode = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b));
+                jobs.add(CompletableFuture.supplyAsync(() -> new LinearAlgebraEngine(executor).run(rootNode).getMatrix()));
+            }
+            for (int job = 0; job < jobs.size(); job++) {
+                double[][] result = jobs.get(job).join();
+                assertEquals(job, result[3][66]);
+                assertEquals(0.0, result[3][3]);
+            }
+            assertTrue(executor.getWorkerReport().startsWith("Virtual threads"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testRun_SpeculativeTiles() throws InterruptedException {
+        // with speculation the tiles compute into buffers of their own and the winner copies it into the product
+        int n = 150, k = 40;
+        double[][] a = new double[n][k];
+        double[][] b = new double[k][n];
+        for (int i = 0; i < n; i++)
+            for (int p = 0; p < k; p++) {
+                a[i][p] = (i + 2 * p) % 9 - 4;
+                b[p][i] = (3 * i + p) % 7 - 3;
+            }
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+        lae.setSpeculation(3);
+        double[][] result = lae.run(createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b))).getMatrix();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = 0;
+                for (int p = 0; p < k; p++) {
+                    expected += a[i][p] * b[p][j];
+                }
+                assertEquals(expected, result[i][j], 1e-9);
+            }
+        }
+        // virtual threads don't speculate, the setting is ignored
+        VirtualThreadExecutor virtual = new VirtualThreadExecutor(2);
+        try {
+            new LinearAlgebraEngine(virtual).setSpeculation(3);
+            assertFalse(virtual.isSpeculative());
+        } finally {
+            virtual.shutdown();
+        }
+    }
+
+    @Test
+    void testRun_RecyclesBuffers() throws InterruptedException {
+        double[][] a = new double[10][10];
+        double[][] b = new double[10][10];
+        double[][] c = new double[10][10];
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(a[i], 1);
+            Arrays.fill(b[i], 2);
+            Arrays.fill(c[i], 3);
+        }
+        // an executor the engine doesn't own, so run doesn't shut it down and the engine can run twice
+        TiredExecutor executor = new TiredExecutor(2);
+        try {
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(executor);
+            ComputationNode root = lae.run(createOpNode(ComputationNodeType.MULTIPLY,
+                    createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b)), createLeafNode(c)));
+            // the result is copied out of engine storage at the end of run, and its storage is released too
+            assertNull(root.getSharedMatrix());
+            for (double[] row : root.getMatrix()) {
+                assertArrayEquals(new double[]{600, 600, 600, 600, 600, 600, 600, 600, 600, 600}, row);
+            }
+            // the arrays of the operands that were consumed are recycled for the later matrices of the run
+            long allocated = lae.getBuffers().getAllocated();
+            long reused = lae.getBuffers().getReused();
+            assertTrue(reused > 0);
+
+            // every array went back to the arena at the end of the run, so running the same expression again
+            // takes all of its arrays from there and allocates none
+            root = lae.run(createOpNode(ComputationNodeType.MULTIPLY,
+                    createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b)), createLeafNode(c)));
+            assertEquals(600.0, root.getMatrix()[9][9]);
+            assertEquals(allocated, lae.getBuffers().getAllocated());
+            assertEquals(reused + allocated + reused, lae.getBuffers().getReused(), "every array of the first run is reused");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testRun_SharedIntermediateStorage() {
+        // X = A * B is read by X^T * C and by -X; X^T shares the storage of X, which has to outlive both readers
+        int n = 12;
+        double[][] a = new double[n][n];
+        double[][] b = new double[n][n];
+        double[][] c = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                a[i][j] = (i + j) % 5 - 2;
+                b[i][j] = (i * j) % 3;
+                c[i][j] = i == j ? 2 : (i - j) % 2;
+            }
+        }
+        double[][] x = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                for (int k = 0; k < n; k++)
+                    x[i][j] += a[i][k] * b[k][j];
+        double[][] expected = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < n; k++) {
+                    expected[i][j] += x[k][i] * c[k][j];
+                }
+                expected[i][j] -= x[i][j];
+            }
+        }
+
+        ComputationNode product = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(b));
+        ComputationNode root = createOpNode(ComputationNodeType.ADD,
+                createOpNode(ComputationNodeType.MULTIPLY, createUnaryOpNode(ComputationNodeType.TRANSPOSE, product), createLeafNode(c)),
+                createUnaryOpNode(ComputationNodeType.NEGATE, product));
+        assertArrayEquals(expected, new LinearAlgebraEngine(3).run(root).getMatrix());
+    }
+
+    @Test
+    void testRun_LayoutPropagation() {
+        // (A + B) * -(C + D): the sum is read by rows, the negation by columns, so it is computed as its transpose
+        double[][] a = {{1, 2}, {3, 4}, {5, 6}};
+        double[][] b = {{1, 1}, {1, 1}, {1, 1}};
+        double[][] c = {{1, 0, 2}, {0, 1, 3}};
+        double[][] d = {{1, 1, 1}, {0, 0, 0}};
+        ComputationNode sum = createOpNode(ComputationNodeType.ADD, createLeafNode(a), createLeafNode(b));
+        ComputationNode negated = createUnaryOpNode(ComputationNodeType.NEGATE,
+                createOpNode(ComputationNodeType.ADD, createLeafNode(c), createLeafNode(d)));
+        ComputationNode rootNode = createOpNode(ComputationNodeType.MULTIPLY, sum, negated);
+
+        ExecutionPlan plan = ExecutionPlan.compile(rootNode);
+        assertEquals(3, plan.size(), "the negated sum is fused into one step");
+        assertEquals(VectorOrientation.ROW_MAJOR, plan.get(0).getLayout());
+        assertEquals(VectorOrientation.COLUMN_MAJOR, plan.get(1).getLayout());
+        assertNull(plan.get(2).getLayout());
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        double[][] result = lae.run(rootNode).getMatrix();
+        // {{2, 3}, {4, 5}, {6, 7}} * {{-2, -1, -3}, {0, -1, -3}}
+        assertArrayEquals(new double[][]{{-4, -5, -15}, {-8, -9, -27}, {-12, -13, -39}}, result);
+
+        // E * (A * C + F): the fused product is read by columns, so it is computed as C^T * A^T + F^T
+        double[][] e = {{1, -1, 2}, {0, 3, 1}};
+        double[][] f = {{1, 2, 3}, {4, 5, 6}, {7, 8, 9}};
+        ComputationNode inner = createOpNode(ComputationNodeType.ADD,
+                createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(c)), createLeafNode(f));
+        ComputationNode outer = createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(e), inner);
+        ExecutionPlan outerPlan = ExecutionPlan.compile(outer);
+        assertEquals(VectorOrientation.COLUMN_MAJOR, outerPlan.get(0).getLayout());
+
+        ComputationNode separateInner = createOpNode(ComputationNodeType.ADD,
+                createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(a), createLeafNode(c)), createLeafNode(f));
+        double[][] innerValue = new LinearAlgebraEngine(2).run(separateInner).getMatrix();
+        double[][] expected = new LinearAlgebraEngine(2)
+                .run(createOpNode(ComputationNodeType.MULTIPLY, createLeafNode(e), createLeafNode(innerValue))).getMatrix();
+        assertArrayEquals(expected, new LinearAlgebraEngine(2).run(outer).getMatrix());
+    }
+
+    @Test
+    void testRun_ParallelLayoutConversion() {
+        // operands large enough to be copied by fill tasks: X^T + Y read by columns, and -(X^T + Y) * Z
+        int n = 70, m = 90;
+        double[][] x = new double[m][n];
+        double[][] y = new double[n][m];
+        double[][] z = new double[m][n];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                x[i][j] = (i * 7 + j) % 11 - 5;
+                y[j][i] = (i + j * 3) % 5;
+                z[i][j] = (i - j) % 3;
+            }
+        }
+        double[][] expected = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < m; k++) {
+                    expected[i][j] -= (x[k][i] + y[i][k]) * z[k][j];
+                }
+            }
+        }
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            ComputationNode sum = createOpNode(ComputationNodeType.ADD, transposeOf(x), createLeafNode(y));
+            ComputationNode root = createOpNode(ComputationNodeType.MULTIPLY,
+                    createUnaryOpNode(ComputationNodeType.NEGATE, sum), createLeafNode(z));
+            assertArrayEquals(expected, new LinearAlgebraEngine(3, mode).run(root).getMatrix(), mode.toString());
+        }
+    }
+
+    // an n x m matrix with a non-zero between 1 and 4 in every 40th column of a row, not symmetric
+    private static double[][] sparseData(int n, int m, int shift) {
+        double[][] data = new double[n][m];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < m; j++) {
+                if ((i * 13 + j * 9 + shift) % 40 == 0) {
+                    data[i][j] = (i + 2 * j) % 4 + 1;
+                }
+            }
+        }
+        return data;
+    }
+
+    private ComputationNode sparseLeaf(double[][] data) {
+        return new ComputationNode(SparseMatrix.fromDense(data), false);
+    }
+
+    // (S1 + (S2^T)^T) * D, D^T * -(S1^T), S1 * S2 + D2 and S2^T * S1^T, over sparse leaves (the transposes stored
+    // by columns) or dense leaves
+    private List<ComputationNode> sparseTrees(double[][] s1, double[][] s2, double[][] d, double[][] d2, boolean sparse) {
+        ComputationNode second = sparse ? new ComputationNode(SparseMatrix.fromDense(s2), true) : transposeOf(s2);
+        ComputationNode sumTimesD = createOpNode(ComputationNodeType.MULTIPLY, createOpNode(ComputationNodeType.ADD,
+                sparse ? sparseLeaf(s1) : createLeafNode(s1), createUnaryOpNode(ComputationNodeType.TRANSPOSE, second)),
+                createLeafNode(d));
+        ComputationNode dTimesNegated = createOpNode(ComputationNodeType.MULTIPLY,
+                createUnaryOpNode(ComputationNodeType.TRANSPOSE, createLeafNode(d)),
+                createUnaryOpNode(ComputationNodeType.NEGATE, sparse ? new ComputationNode(SparseMatrix.fromDense(s1), true) : transposeOf(s1)));
+        ComputationNode productPlusD2 = createOpNode(ComputationNodeType.ADD, createOpNode(ComputationNodeType.MULTIPLY,
+                sparse ? sparseLeaf(s1) : createLeafNode(s1), sparse ? sparseLeaf(s2) : createLeafNode(s2)), createLeafNode(d2));
+        ComputationNode transposedProduct = createOpNode(ComputationNodeType.MULTIPLY,
+                sparse ? new ComputationNode(SparseMatrix.fromDense(s2), true) : transposeOf(s2),
+                sparse ? new ComputationNode(SparseMatrix.fromDense(s1), true) : transposeOf(s1));
+        return List.of(sumTimesD, dTimesNegated, productPlusD2, transposedProduct);
+    }
+
+    @Test
+    void testRun_SparseOperands() throws InterruptedException {
+        int n = 200, m = 30;
+        double[][] s1 = sparseData(n, n, 0);
+        double[][] s2 = sparseData(n, n, 3);
+        double[][] d = new double[n][m];
+        double[][] d2 = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                d2[i][j] = (i + 2 * j) % 7 - 3;
+                if (j < m) {
+                    d[i][j] = (i * j) % 5 - 2;
+                }
+            }
+        }
+        List<ComputationNode> sparseTrees = sparseTrees(s1, s2, d, d2, true);
+        List<ComputationNode> denseTrees = sparseTrees(s1, s2, d, d2, false);
+        // the sparse product isn't fused into the sum
+        assertEquals(2, ExecutionPlan.compile(sparseTrees.get(2)).size());
+        assertEquals(1, ExecutionPlan.compile(denseTrees.get(2)).size());
+        for (int k = 0; k < sparseTrees.size(); k++) {
+            double[][] expected = new LinearAlgebraEngine(3).run(denseTrees.get(k)).getMatrix();
+            assertArrayEquals(expected, new LinearAlgebraEngine(3).run(sparseTrees.get(k)).getMatrix(), "tree " + k);
+        }
+
+        // sparse operations with sparse operands stay sparse, unless the fill-in makes the result dense
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(3);
+        try {
+            ComputationNode sum = createOpNode(ComputationNodeType.ADD, sparseLeaf(s1), sparseLeaf(s2));
+            lae.loadAndCompute(sum);
+            assertNotNull(sum.getSparseMatrix());
+            ComputationNode product = createOpNode(ComputationNodeType.MULTIPLY, sparseLeaf(s1), sparseLeaf(s2));
+            lae.loadAndCompute(product);
+            assertNotNull(product.getSparseMatrix());
+            double[][] column = new double[n][1];
+            double[][] row = new double[1][n];
+            for (int i = 0; i < n; i++) {
+                column[i][0] = i + 1;
+                row[0][i] = i % 3 + 1;
+            }
+            ComputationNode outer = createOpNode(ComputationNodeType.MULTIPLY, sparseLeaf(column), sparseLeaf(row));
+            lae.loadAndCompute(outer);
+            assertNull(outer.getSparseMatrix());
+            assertNotNull(outer.getSharedMatrix());
+            assertEquals(6.0, outer.getMatrix()[1][2]);
+        } finally {
+            lae.shutdown();
+        }
+    }
+
+    @Test
+    void testParse_SparseLeaves() throws Exception {
+        // a 30 x 30 identity has 1/30 non-zeros, under a density of 0.05, a 2 x 2 matrix of ones doesn't
+        StringBuilder identity = new StringBuilder("[");
+        for (int i = 0; i < 30; i++) {
+            double[] row = new double[30];
+            row[i] = 1;
+            identity.append(i == 0 ? "" : ",").append(Arrays.toString(row));
+        }
+        identity.append("]");
+        Path input = Files.createTempFile("lae", ".json");
+        try {
+            Files.writeString(input, "{\"operator\": \"*\", \"operands\": [" + identity + ", " + identity + "]}");
+            InputParser sparse = new InputParser();
+            sparse.setSparseDensity(0.05);
+            ComputationNode root = sparse.parse(input.toString());
+            assertNotNull(root.getChildren().get(0).getSparseMatrix());
+            assertSame(root.getChildren().get(0).getSparseMatrix(), root.getChildren().get(1).getSparseMatrix(),
+                    "equal sparse matrices are parsed once");
+            double[][] result = new LinearAlgebraEngine(2).run(root).getMatrix();
+            assertEquals(1.0, result[7][7]);
+            assertEquals(0.0, result[7][8]);
+
+            // sparse leaves are opt-in
+            assertNull(new InputParser().parse(input.toString()).getChildren().get(0).getSparseMatrix());
+
+            Files.writeString(input, "{\"operator\": \"-\", \"operands\": [[[1, 1], [1, 1]]]}");
+            assertNull(sparse.parse(input.toString()).getChildren().get(0).getSparseMatrix());
+        } finally {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    @Test
+    void testParse_DefaultMatchesDenseBitForBit() throws Exception {
+        // the negation of an all-zero matrix is -0.0 everywhere when it is computed dense, the sparse negate only
+        // negates the stored values so it gives +0.0. The default parse has to give the dense result
+        Path input = Files.createTempFile("lae", ".json");
+        try {
+            Files.writeString(input, "{\"operator\": \"-\", \"operands\": [[[0, 0, 0], [0, 0, 0]]]}");
+            double[][] dense = new LinearAlgebraEngine(2)
+                    .run(createUnaryOpNode(ComputationNodeType.NEGATE, createLeafNode(new double[2][3]))).getMatrix();
+            double[][] byDefault = new LinearAlgebraEngine(2).run(new InputParser().parse(input.toString())).getMatrix();
+            InputParser sparse = new InputParser();
+            sparse.setSparseDensity(0.05);
+            double[][] bySparse = new LinearAlgebraEngine(2).run(sparse.parse(input.toString())).getMatrix();
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < 3; j++) {
+                    assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(dense[i][j]));
+                    assertEquals(Double.doubleToRawLongBits(dense[i][j]), Double.doubleToRawLongBits(byDefault[i][j]));
+                    // the documented difference of sparse leaves: the zeros they don't store stay +0.0
+                    assertEquals(Double.doubleToRawLongBits(0.0), Double.doubleToRawLongBits(bySparse[i][j]));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(input);
+        }
+    }
+}